@@ -13,23 +13,79 @@
  * limitations under the License.
  */
 
-/* NB: this class probably uses suboptimal algorithm
- * and also it uses lots of unnecessary memory allocations
- * (because of new String(char[]); though it can be easily fixed)
+/* The combinations are listed in colexicographic order: a combination is the
+ * descending sequence of the indices of its characters, and the rightmost index
+ * which can be increased is increased, the ones after it set to their least values.
+ * forEachIndices() hands out the index array (forEachView() a view of the
+ * characters) in place, without allocating anything per combination;
+ * the Iterator<String> is built on top of it and allocates a String per combination.
+ *
+ * In this order the combination c[0] > c[1] > ... > c[k-1] comes after exactly
+ *   rank = C(c[0], k) + C(c[1], k-1) + ... + C(c[k-1], 1)
+ * others (the combinatorial number system), so any of them can be found by its rank
+ * and the enumeration started there: that's how the Spliterator splits the work
  */
 
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 import java.lang.Iterable;
 
 public class Combinations
     implements Iterator<String> {
     private int n, k;
-    private int min;
+    /* the position of the index to increase on the next step, -1 if none */
     private int nextToChange;
+    /* indices of the current combination, descending */
     private int[] comb;
+    /* whether comb is yet to be handed out (right after a seek) */
+    private boolean fresh;
+    /* combinations handed out since the enumeration (or seek) began */
+    private long emitted;
+    private EnumerationEvent event;
     private char[] combstr;
     private char[] chars;
+    private CharSequence view = new View();
+
+    /* receives a combination in place: idx[0..k) are the indices of its
+     * characters, descending; the array must not be changed or kept
+     */
+    public interface IntArrayConsumer {
+        void accept(int[] idx);
+    }
+
+    /* receives a combination as a view of its characters,
+     * valid until the call returns
+     */
+    public interface CharSequenceConsumer {
+        void accept(CharSequence comb);
+    }
 
     public Combinations(char[] chars, int k) {
         this.n = chars.length;
@@ -42,61 +98,707 @@ public class Combinations
 
     @Override
     public boolean hasNext() {
-        if (n < k) return false;
-        /* if we're yet to initialize this.comb,
-         * we're allowed to return at least the first (trivial) combination
-         */
-        if (comb == null) return true;
-        /* invariant: comb[i] > comb[i+1].
-         * we want to increase the rightmost digit
-         * such that there will be no need to change bits to the left
-         */
-        int i = nextToChange;
-        if (i == k + 1) {
-            i = k;
-        }
-        while (i > 0 && comb[i-1] == 1 + comb[i])
-            --i;
-        nextToChange = i;
-        return i > 0;
+        if (comb == null)
+            return n >= k;
+        if (fresh || nextToChange >= 0)
+            return true;
+        report();
+        return false;
     }
 
     @Override
     public String next() {
-        if (!hasNext())
+        int from = advance();
+        if (from < 0)
             return null; /* you better throw */
+        spell(from);
+        return new String(combstr);
+    }
+
+    /* passes the remaining combinations to action */
+    public void forEachIndices(IntArrayConsumer action) {
+        while (advance() >= 0)
+            action.accept(comb);
+    }
+
+    /* passes the remaining combinations to action, as one reused CharSequence */
+    public void forEachView(CharSequenceConsumer action) {
+        int from;
+        while ((from = advance()) >= 0) {
+            spell(from);
+            action.accept(view);
+        }
+    }
+
+    /* moves to the next combination;
+     * returns the first position that has changed, or -1 if there are no more
+     */
+    private int advance() {
         if (comb == null) {
-            this.comb = new int[k+1];
-            this.combstr = new char[k];
-            comb[0] = n;
-            nextToChange = 1;
-            for (int i = 1; i <= k; ++i)
-                comb[i] = k - i;
-        } else {
-            comb[nextToChange] += 1;
-            for (int j = nextToChange + 1; j <= k; ++j)
-                comb[j] = k - j;
-            nextToChange += 1;
+            if (n < k)
+                return -1;
+            int[] first = new int[k];
+            for (int i = 0; i < k; ++i)
+                first[i] = k - 1 - i;
+            start(first);
+        }
+        if (fresh) {
+            fresh = false;
+            emitted += 1;
+            return 0;
+        }
+        int p = nextToChange;
+        if (p < 0) {
+            report();
+            return -1;
+        }
+        emitted += 1;
+        comb[p] += 1;
+        for (int j = p + 1; j < k; ++j)
+            comb[j] = k - 1 - j;
+        /* those after p are at their least values now,
+         * so the next one to change is p+1 or to the left of it
+         */
+        findNextToChange(Math.min(p + 1, k - 1));
+        return p;
+    }
+
+    /* makes idx the next combination to hand out */
+    private void start(int[] idx) {
+        this.comb = idx;
+        this.combstr = new char[k];
+        this.fresh = true;
+        findNextToChange(k - 1);
+        report();
+        emitted = 0;
+        if (JFR) {
+            event = new EnumerationEvent();
+            event.begin();
+            event.began = System.nanoTime();
+        }
+    }
+
+    /* commits the event of the enumeration so far, if there's one;
+     * called wherever an enumeration is found to have ended
+     */
+    private void report() {
+        if (event == null)
+            return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.n = n;
+            event.k = k;
+            event.count = emitted;
+            long nanos = System.nanoTime() - event.began;
+            event.perSecond = nanos == 0 ? 0 : emitted * 1e9 / nanos;
+            event.commit();
         }
+        event = null;
+    }
+
+    /* Flight recorder event, committed (if recording) once per enumeration:
+     * when it runs out (advance() or hasNext() finds no more, or a
+     * RankSpliterator reaches the end of its range), or, for a part of it,
+     * when it's seeked elsewhere or the part is done (BulkWriter);
+     * with -Dvsu.jfr=true only (see README)
+     */
+    static final boolean JFR = Boolean.getBoolean("vsu.jfr");
+
+    @Name("vsu.Combinations")
+    @Label("Combinations Enumeration")
+    @Category({ "VSU", "Combinations" })
+    static class EnumerationEvent extends Event {
+        @Label("N")
+        int n;
+        @Label("K")
+        int k;
+        @Label("Combinations")
+        long count;
+        @Label("Combinations per Second")
+        double perSecond;
+        /* not recorded */
+        transient long began;
+    }
+
+    /* invariant: comb[i] > comb[i+1].
+     * we want to increase the rightmost index
+     * such that there will be no need to change the ones to the left
+     */
+    private void findNextToChange(int i) {
+        while (i >= 0 && comb[i] + 1 == (i == 0 ? n : comb[i-1]))
+            --i;
+        nextToChange = i;
+    }
+
+    /* the number of combinations; throws ArithmeticException if it exceeds a long */
+    public long count() {
+        long c = binomial(n, k);
+        if (c == Long.MAX_VALUE)
+            throw new ArithmeticException("C(" + n + ", " + k + ") exceeds a long");
+        return c;
+    }
+
+    public BigInteger countBig() {
+        return binomialBig(n, k);
+    }
+
+    /* the rank of the combination of indices idx[0] > ... > idx[k-1] */
+    public long rank(int[] idx) {
+        long r = 0;
         for (int i = 0; i < k; ++i)
-            combstr[i] = chars[comb[i+1]];
-        return new String(combstr);
+            r += binomial(idx[i], k - i);
+        return r;
+    }
+
+    public BigInteger rankBig(int[] idx) {
+        BigInteger r = BigInteger.ZERO;
+        for (int i = 0; i < k; ++i)
+            r = r.add(binomialBig(idx[i], k - i));
+        return r;
+    }
+
+    /* the combination of the given rank: greedily, idx[i] is the largest c
+     * with C(c, k-i) not exceeding what's left of the rank
+     */
+    public int[] unrank(long rank) {
+        /* binomial() saturates, so every rank of a long is fine for larger C(n, k) */
+        if (rank < 0 || rank >= binomial(n, k))
+            throw new IllegalArgumentException("no combination of rank " + rank);
+        int[] idx = new int[k];
+        int hi = n;
+        for (int i = 0; i < k; ++i) {
+            int j = k - i;
+            /* C(lo, j) <= rank < C(hi, j) */
+            int lo = j - 1;
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                if (binomial(mid, j) <= rank)
+                    lo = mid;
+                else
+                    hi = mid;
+            }
+            idx[i] = lo;
+            rank -= binomial(lo, j);
+            hi = lo;
+        }
+        return idx;
+    }
+
+    public int[] unrankBig(BigInteger rank) {
+        if (rank.signum() < 0 || rank.compareTo(countBig()) >= 0)
+            throw new IllegalArgumentException("no combination of rank " + rank);
+        int[] idx = new int[k];
+        int hi = n;
+        for (int i = 0; i < k; ++i) {
+            int j = k - i;
+            int lo = j - 1;
+            while (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                if (binomialBig(mid, j).compareTo(rank) <= 0)
+                    lo = mid;
+                else
+                    hi = mid;
+            }
+            idx[i] = lo;
+            rank = rank.subtract(binomialBig(lo, j));
+            hi = lo;
+        }
+        return idx;
+    }
+
+    /* continues the enumeration from the combination of the given rank */
+    public void seek(long rank) {
+        start(unrank(rank));
+    }
+
+    public void seekBig(BigInteger rank) {
+        start(unrankBig(rank));
+    }
+
+    /* C(a, b), or Long.MAX_VALUE if it doesn't fit in a long */
+    public static long binomial(int a, int b) {
+        if (b < 0 || b > a)
+            return 0;
+        b = Math.min(b, a - b);
+        long c = 1;
+        for (int t = 1; t <= b; ++t) {
+            /* c * (a-b+t) / t is C(a-b+t, t), exact */
+            long f = a - b + t;
+            if (Math.multiplyHigh(c, f) != 0 || c * f < 0) {
+                BigInteger big = binomialBig(a, b);
+                return big.bitLength() < 64 ? big.longValue() : Long.MAX_VALUE;
+            }
+            c = c * f / t;
+        }
+        return c;
+    }
+
+    public static BigInteger binomialBig(int a, int b) {
+        if (b < 0 || b > a)
+            return BigInteger.ZERO;
+        b = Math.min(b, a - b);
+        BigInteger c = BigInteger.ONE;
+        for (int t = 1; t <= b; ++t)
+            c = c.multiply(BigInteger.valueOf(a - b + t)).divide(BigInteger.valueOf(t));
+        return c;
+    }
+
+    private void spell(int from) {
+        for (int i = from; i < k; ++i)
+            combstr[i] = chars[comb[i]];
+    }
+
+    private class View implements CharSequence {
+        @Override
+        public int length() {
+            return k;
+        }
+        @Override
+        public char charAt(int i) {
+            return combstr[i];
+        }
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(combstr, start, end - start);
+        }
+        @Override
+        public String toString() {
+            return new String(combstr);
+        }
+    }
+
+    /* the characters of a mask (see Masks), highest bit first, as the iterator gives them */
+    public void decode(long mask, char[] out) {
+        for (int i = 0; mask != 0; ++i) {
+            int b = 63 - Long.numberOfLeadingZeros(mask);
+            out[i] = chars[b];
+            mask ^= 1L << b;
+        }
+    }
+
+    public String decode(long mask) {
+        char[] out = new char[Long.bitCount(mask)];
+        decode(mask, out);
+        return new String(out);
+    }
+
+    /* the same combinations as masks, if there are at most 64 characters */
+    public Masks masks() {
+        return new Masks(n, k);
+    }
+
+    /* Combinations of n <= 64 things as longs, bit i set iff thing i is chosen.
+     * Masks with k bits in increasing order are exactly the combinations in the
+     * order above, and Gosper's hack steps from one to the next in a few
+     * instructions: adding the lowest set bit c to x carries the lowest block of
+     * ones one place up, and the rest of that block goes back to the bottom:
+     *   r = x + c;  x = r | ((r ^ x) >>> 2) / c
+     * (the division is a shift by the number of trailing zeros of x)
+     */
+    public static class Masks {
+        private long mask, last;
+        private boolean more;
+
+        public Masks(int n, int k) {
+            if (n > 64)
+                throw new IllegalArgumentException("masks are for at most 64 things");
+            more = 0 <= k && k <= n;
+            if (!more)
+                return;
+            mask = k == 64 ? -1L : (1L << k) - 1;
+            last = k == 0 ? 0 : mask << (n - k);
+        }
+
+        public boolean hasNext() {
+            return more;
+        }
+
+        public long next() {
+            long x = mask;
+            if (x == last)
+                more = false;
+            else
+                mask = step(x);
+            return x;
+        }
+
+        /* puts the next masks into out[from..from+len), returns how many there were */
+        public int fill(long[] out, int from, int len) {
+            if (!more)
+                return 0;
+            long x = mask, end = last;
+            int i = 0;
+            while (i < len) {
+                out[from + i++] = x;
+                if (x == end) {
+                    more = false;
+                    break;
+                }
+                x = step(x);
+            }
+            mask = x;
+            return i;
+        }
+
+        public int fill(long[] out) {
+            return fill(out, 0, out.length);
+        }
+
+        private static long step(long x) {
+            long r = x + (x & -x);
+            return r | (r ^ x) >>> (2 + Long.numberOfTrailingZeros(x));
+        }
+    }
+
+    /* the same combinations in the revolving-door order */
+    public RevolvingDoor revolvingDoor() {
+        return new RevolvingDoor(n, k);
+    }
+
+    /* Combinations of n things in the revolving-door order (a Gray code):
+     * each one differs from the previous one by a single thing taken out
+     * and a single thing put in, reported by out() and in(), so that anything
+     * computed from a combination can be updated instead of recomputed.
+     * Knuth's Algorithm R (TAOCP 7.2.1.3): c[1] < ... < c[k] are the things
+     * chosen, c[k+1] = n is a sentinel; the first combination is 0, 1, ..., k-1
+     */
+    public static class RevolvingDoor {
+        private int n, k;
+        private int[] c;
+        private int out = -1, in = -1;
+        private boolean started, done;
+
+        public RevolvingDoor(int n, int k) {
+            this.n = n;
+            this.k = k;
+            this.done = k < 0 || k > n;
+        }
+
+        /* moves to the next combination (to the first one, on the first call);
+         * false if there are no more
+         */
+        public boolean advance() {
+            if (done)
+                return false;
+            if (!started) {
+                started = true;
+                c = new int[k + 2];
+                for (int j = 1; j <= k; ++j)
+                    c[j] = j - 1;
+                c[k + 1] = n;
+                return true;
+            }
+            if (k == 0 || k == n)
+                return finish();
+            /* the easy case */
+            boolean odd = (k & 1) == 1;
+            if (odd && c[1] + 1 < c[2]) {
+                swap(c[1], c[1] + 1);
+                c[1] += 1;
+                return true;
+            }
+            if (!odd && c[1] > 0) {
+                swap(c[1], c[1] - 1);
+                c[1] -= 1;
+                return true;
+            }
+            /* otherwise try to decrease c[j] (where c[j] = c[j-1] + 1)
+             * or to increase it (where c[j-1] = j - 2), alternately
+             */
+            for (int j = 2; j <= k; ++j, odd = !odd) {
+                if (odd && c[j] >= j) {
+                    swap(c[j], j - 2);
+                    c[j] = c[j-1];
+                    c[j-1] = j - 2;
+                    return true;
+                }
+                if (!odd && c[j] + 1 < c[j+1]) {
+                    swap(c[j-1], c[j] + 1);
+                    c[j-1] = c[j];
+                    c[j] += 1;
+                    return true;
+                }
+            }
+            return finish();
+        }
+
+        private void swap(int out, int in) {
+            this.out = out;
+            this.in = in;
+        }
+
+        private boolean finish() {
+            done = true;
+            return false;
+        }
+
+        /* the thing taken out on the last step, -1 on the first combination */
+        public int out() {
+            return out;
+        }
+
+        /* the thing put in on the last step, -1 on the first combination */
+        public int in() {
+            return in;
+        }
+
+        /* the i-th least thing chosen, 0 <= i < k */
+        public int get(int i) {
+            return c[i + 1];
+        }
+    }
+
+    /* the combinations of ranks lo <= rank < hi; splits in halves by rank */
+    public static class RankSpliterator implements Spliterator<String> {
+        private char[] chars;
+        private int k;
+        private long lo, hi;
+        /* whether the characters are, and so the combinations are, distinct */
+        private boolean distinct;
+        /* positioned at lo once the traversal has started */
+        private Combinations walk;
+
+        public RankSpliterator(char[] chars, int k, long lo, long hi) {
+            this(chars, k, lo, hi, new String(chars).chars().distinct().count() == chars.length);
+        }
+
+        private RankSpliterator(char[] chars, int k, long lo, long hi, boolean distinct) {
+            this.chars = chars;
+            this.k = k;
+            this.lo = lo;
+            this.hi = hi;
+            this.distinct = distinct;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super String> action) {
+            if (lo >= hi) {
+                if (walk != null)
+                    walk.report();
+                return false;
+            }
+            if (walk == null) {
+                walk = new Combinations(chars, k);
+                walk.seek(lo);
+            }
+            lo += 1;
+            action.accept(walk.next());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super String> action) {
+            while (tryAdvance(action))
+                ;
+        }
+
+        @Override
+        public Spliterator<String> trySplit() {
+            if (walk != null || hi - lo < 2)
+                return null;
+            long mid = lo + (hi - lo) / 2;
+            Spliterator<String> prefix = new RankSpliterator(chars, k, lo, mid, distinct);
+            lo = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return hi - lo;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | (distinct ? DISTINCT : 0) | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+        }
     }
 
+    /* the combinations as an Iterable, whose spliterator() splits by rank,
+     * e.g. for StreamSupport.stream(choose(from, k).spliterator(), true)
+     */
     public static Iterable<String> choose(String from, int k) {
         return new Iterable<String>() {
             @Override
             public Iterator<String> iterator() {
                 return new Combinations(from, k);
             }
+
+            @Override
+            public Spliterator<String> spliterator() {
+                return choose(from, k, 0, new Combinations(from, k).count());
+            }
         };
     }
 
-    public static void main(String[] args) {
+    /* the combinations of ranks lo <= rank < hi, e.g. a shard of the whole */
+    public static Spliterator<String> choose(String from, int k, long lo, long hi) {
+        return new RankSpliterator(from.toCharArray(), k, lo, hi);
+    }
+
+    /* Writes all the combinations, a line each, as main does, but in bulk:
+     * the rank range is cut into chunks that fill a direct ByteBuffer each,
+     * chunks are formatted in parallel (each by a Combinations seeked to its
+     * first rank) and written out to the channel in order. At most DEPTH
+     * buffers are in flight, so memory stays at DEPTH * BUFFER_SIZE whatever
+     * the output size
+     */
+    public static class BulkWriter {
+        private static final int BUFFER_SIZE = 1 << 23;
+        private char[] chars;
+        private int k;
+        /* the encoding of each character, and of the line separator */
+        private byte[][] code;
+        private byte[] eol;
+        /* if every character takes a single byte, lines have a fixed length */
+        private boolean narrow;
+        private int maxLine;
+        private ExecutorService pool;
+        private int depth;
+
+        public BulkWriter(char[] chars, int k, ExecutorService pool, int depth) {
+            this.chars = chars;
+            this.k = k;
+            this.pool = pool;
+            this.depth = Math.max(depth, 1);
+            code = new byte[chars.length][];
+            narrow = true;
+            int widest = 0;
+            for (int i = 0; i < chars.length; ++i) {
+                code[i] = String.valueOf(chars[i]).getBytes();
+                narrow &= code[i].length == 1;
+                widest = Math.max(widest, code[i].length);
+            }
+            eol = System.lineSeparator().getBytes();
+            maxLine = Math.max(k, 0) * widest + eol.length;
+        }
+
+        public void write(WritableByteChannel out)
+                throws IOException, InterruptedException, ExecutionException {
+            Combinations all = new Combinations(chars, k);
+            if (!all.hasNext())
+                return;
+            long total = all.count();
+            long perChunk = Math.max(BUFFER_SIZE / maxLine, 1);
+            Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+            ArrayDeque<Future<ByteBuffer>> window = new ArrayDeque<Future<ByteBuffer>>();
+            long next = 0;
+            while (next < total || !window.isEmpty()) {
+                while (next < total && window.size() < depth) {
+                    long lo = next, hi = Math.min(total, next + perChunk);
+                    window.add(pool.submit(() -> format(lo, hi, free)));
+                    next = hi;
+                }
+                ByteBuffer buf = window.poll().get();
+                buf.flip();
+                while (buf.hasRemaining())
+                    out.write(buf);
+                buf.clear();
+                free.add(buf);
+            }
+        }
+
+        /* the lines of ranks lo <= rank < hi */
+        private ByteBuffer format(long lo, long hi, Queue<ByteBuffer> free) {
+            ByteBuffer buf = free.poll();
+            if (buf == null)
+                buf = ByteBuffer.allocateDirect(Math.min(BUFFER_SIZE,
+                            Math.max(BUFFER_SIZE / maxLine, 1) * maxLine));
+            Combinations c = new Combinations(chars, k);
+            c.seek(lo);
+            byte[] line = new byte[maxLine];
+            System.arraycopy(eol, 0, line, maxLine - eol.length, eol.length);
+            for (long r = lo; r < hi; ++r) {
+                int from = c.advance();
+                if (narrow) {
+                    /* only the characters from the changed position on */
+                    for (int i = from; i < k; ++i)
+                        line[i] = code[c.comb[i]][0];
+                    buf.put(line, 0, maxLine);
+                } else {
+                    for (int i = 0; i < k; ++i)
+                        buf.put(code[c.comb[i]]);
+                    buf.put(eol);
+                }
+            }
+            c.report();
+            return buf;
+        }
+    }
+
+    /* usage: Combinations [-r] CHARS K
+     *        Combinations -p [-o FILE] CHARS K
+     *  prints the combinations of K of CHARS, one per line;
+     *  -r lists them in the revolving-door order;
+     *  -p writes the same bytes with a BulkWriter, a thread per processor,
+     *  to stdout or to FILE
+     */
+    public static void main(String[] args) throws Exception {
+        run(args, System.in, new FileOutputStream(FileDescriptor.out), System.err);
+    }
+
+    /* main, with its standard streams given */
+    public static void run(String[] args, InputStream in, OutputStream out, PrintStream err)
+            throws Exception {
+        run(args, Path.of(""), in, out, err);
+    }
+
+    /* the same, with file names taken relative to dir; dir == null refuses them */
+    public static void run(String[] args, Path dir, InputStream in, OutputStream out,
+            PrintStream err) throws Exception {
+        boolean revolving = args[0].equals("-r");
+        if (revolving)
+            args = Arrays.copyOfRange(args, 1, args.length);
+        if (args[0].equals("-p")) {
+            bulk(Arrays.copyOfRange(args, 1, args.length), dir, out);
+            return;
+        }
         int k = Integer.parseInt(args[1]);
-        PrintWriter pw = new PrintWriter(System.out);
-        for (String comb: Combinations.choose(args[0], k))
-            pw.println(comb);
+        PrintWriter pw = new PrintWriter(out);
+        char[] chars = args[0].toCharArray();
+        char[] line = new char[Math.max(k, 0)];
+        if (revolving) {
+            RevolvingDoor door = new RevolvingDoor(chars.length, k);
+            while (door.advance()) {
+                for (int i = 0; i < k; ++i)
+                    line[i] = chars[door.get(k - 1 - i)];
+                pw.write(line);
+                pw.println();
+            }
+            pw.flush();
+            return;
+        }
+        new Combinations(chars, k).forEachIndices(idx -> {
+            for (int i = 0; i < k; ++i)
+                line[i] = chars[idx[i]];
+            pw.write(line);
+            pw.println();
+        });
         pw.flush();
     }
+
+    private static void bulk(String[] args, Path dir, OutputStream out) throws Exception {
+        Path file = null;
+        if (args[0].equals("-o")) {
+            if (dir == null)
+                throw new IllegalArgumentException("file arguments aren't allowed here: " + args[1]);
+            file = dir.resolve(args[1]);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        BulkWriter writer = new BulkWriter(args[0].toCharArray(),
+                Integer.parseInt(args[1]), pool, 2*threads);
+        try {
+            if (file == null) {
+                writer.write(Channels.newChannel(out));
+            } else {
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    writer.write(ch);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
 }
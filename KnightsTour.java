@@ -13,13 +13,92 @@
  * limitations under the License.
  */
 
-import java.io.PrintWriter;
-import java.util.Comparator;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 
 public class KnightsTour {
     public static final int INFTY = Integer.MAX_VALUE;
-    public static class BoardTraversal {
+
+    /* a numbering of the cells of a board by the steps of a knight */
+    public interface Tour {
+        boolean exists();
+        /* the No of the step on which (x,y) is visited, INFTY if none */
+        int i(int x, int y);
+    }
+
+    /* Flight recorder event, committed (if recording) once per search;
+     * with -Dvsu.jfr=true only (see README)
+     */
+    static final boolean JFR = Boolean.getBoolean("vsu.jfr");
+
+    @Name("vsu.BoardTraversal")
+    @Label("Knight's Tour Search")
+    @Category({ "VSU", "KnightsTour" })
+    static class TraversalEvent extends Event {
+        @Label("Rows")
+        int rows;
+        @Label("Columns")
+        int columns;
+        @Label("Tie-Breaking")
+        String tieBreak;
+        @Label("Found")
+        boolean found;
+        @Label("Cancelled")
+        boolean cancelled;
+        @Label("Steps")
+        long steps;
+        @Label("Backtracks")
+        long backtracks;
+        @Label("Time per Step")
+        @Timespan(Timespan.NANOSECONDS)
+        long timePerStep;
+
+        TraversalEvent() {
+            begin();
+        }
+
+        void report(BoardTraversal t) {
+            end();
+            if (!shouldCommit())
+                return;
+            rows = t.m;
+            columns = t.n;
+            tieBreak = t.tie.name();
+            found = t.exists();
+            cancelled = t.cancelled;
+            steps = t.steps;
+            backtracks = t.backtracks;
+            timePerStep = Math.round(t.nanosPerStep());
+            commit();
+        }
+    }
+
+    public static class BoardTraversal implements Tour {
         /* traversal[serial(x,y)] = the No of a step on which (x,y) is visited */
         private int[] traversal;
         /* board dimensions */
@@ -28,6 +107,32 @@ public class KnightsTour {
         private static final int[] MOVES_X = { 1,  1, -1, -1, 2,  2, -2, -2};
         private static final int[] MOVES_Y = { 2, -2,  2, -2, 1, -1,  1, -1};
         private static final int MOVES_NO  = 8;
+        /* neighbours of a cell c are nbr[c*MOVES_NO + j], j < nbrNo[c],
+         * in the order given by the tie-breaking rule (by their (x, y) by default):
+         * that's how Warnsdorff's ties are broken
+         */
+        private int[] nbr;
+        private int[] nbrNo;
+        /* number of unvisited neighbours of each cell */
+        private int[] degree;
+        /* search statistics */
+        private long steps, backtracks;
+        private int maxBacktrackDepth;
+        private long nanos;
+        private TieBreak tie;
+        private boolean cancelled;
+        /* the cancellation flag is looked at once in this many moves */
+        private static final int CANCEL_CHECK_MASK = (1 << 12) - 1;
+
+        /* how candidates with the same number of continuations are ordered:
+         *  XY         by (x, y) of the target;
+         *  REVERSE_XY by (x, y) of the target, descending;
+         *  POHL       by the total number of continuations of the target's
+         *             unvisited neighbours (Warnsdorff's rule one move deeper),
+         *             then by (x, y);
+         *  RANDOM     by a pseudo-random order of moves fixed for each cell by the seed
+         */
+        public enum TieBreak { XY, REVERSE_XY, POHL, RANDOM }
 
         /* input:
          *  (m, n): dimensions
@@ -35,69 +140,208 @@ public class KnightsTour {
          * after construction, board.i(x,y) returns the position of (x,y) in traversal
          */
         public BoardTraversal(int m, int n, int x0, int y0) {
+            this(m, n, x0, y0, TieBreak.XY, 0, null);
+        }
+
+        /* same, with ties broken by the given rule (seed is only used by RANDOM);
+         * the search gives up, leaving no traversal, once cancel (if not null) is set
+         */
+        public BoardTraversal(int m, int n, int x0, int y0,
+                TieBreak tie, long seed, AtomicBoolean cancel) {
+            this.tie = tie;
             if (!isProblemSolvable(m, n)) {
                 return;
             }
             this.traversal = new int[m*n];
             this.m = m;
             this.n = n;
-            for (int x = 0; x < m; ++x)
-                for (int y = 0; y < n; ++y)
-                    i(x, y, INFTY);
-            i(x0, y0, 0);
-
-            int[] choice = new int[m*n];
-            Move[] movs = new Move[MOVES_NO];
-            for (int i = 0; i < MOVES_NO; ++i)
-                movs[i] = new Move();
+            Arrays.fill(traversal, INFTY);
+            buildNeighbours(seed);
+            boolean pohl = tie == TieBreak.POHL;
 
             int maxDepth = n*m;
+            int[] choice = new int[maxDepth];
+            /* path[d] is the cell visited on step d */
+            int[] path = new int[maxDepth];
+            int[] keys = new int[MOVES_NO];
+            int c = y0*n + x0;
+            visit(c, 0);
+            path[0] = c;
             int d = 1;
-            int x = x0;
-            int y = y0;
+            /* number of steps taken back in a row */
+            int retreat = 0;
+            TraversalEvent event = JFR ? new TraversalEvent() : null;
+            long start = System.nanoTime();
 
             /* d=maxDepth means we've all cells covered */
             while (d != maxDepth) {
-                /* feasibleMoves() fills `movs` with points reachable from (x,y).
-                 * The Wansdorf's heuristic is used:
-                 * we always jump to the cell with the fewest number of "continuations".
-                 * I.e. `movs` is ordered by the number of continuations
-                 * i.e. the number of unvisited cells reachable from (mov.x, mov.y).
-                 * If no cell is reachable from (mov.x,mov.y),
-                 * mov.continuations equals INFTY.
-                 * In this case we jump back.
-                 * The previous cell is found just via linear search,
-                 * with the condition i(xprev,yprew) == d-1.
-                 * Because of the heuristic used this won't happen too often
+                if (cancel != null && ((steps + backtracks) & CANCEL_CHECK_MASK) == 0
+                        && cancel.get()) {
+                    this.traversal = null;
+                    cancelled = true;
+                    break;
+                }
+                /* The Wansdorf's heuristic is used:
+                 * we always jump to the cell with the fewest number of "continuations",
+                 * i.e. of unvisited cells reachable from it (that's degree[]).
+                 * Candidates are packed into ints, (continuations << 3 | j),
+                 * so that sorting them orders them by continuations, then by j;
+                 * the POHL rule puts the continuations of continuations in between,
+                 * (continuations << 7 | their continuations) << 3 | j.
+                 * keys[cnt..] are padded with INFTY.
+                 * choice[d] is the candidate to try at depth d;
+                 * when they're exhausted we jump back and try the next one there
                  */
-                feasibleMoves(x, y, movs);
-                Move mov = movs[choice[d]];
-                if (!isFeasible(mov)) {
-                    i(x, y, INFTY);
+                int base = c*MOVES_NO;
+                int cnt = 0;
+                for (int j = 0; j < nbrNo[c]; ++j) {
+                    int w = nbr[base + j];
+                    if (traversal[w] != INFTY)
+                        continue;
+                    int key = degree[w];
+                    if (pohl)
+                        key = key << 7 | continuations(w);
+                    keys[cnt++] = key << 3 | j;
+                }
+                for (int j = cnt; j < MOVES_NO; ++j)
+                    keys[j] = INFTY;
+                sort8(keys);
+
+                if (choice[d] >= cnt) {
+                    unvisit(c);
                     choice[d] = 0;
                     d += -1;
-                    /* we'll choose different continuation next time.
-                     * NB: it is crucial that the sorting algorithm applied to movs is *stable*
-                     */
+                    backtracks += 1;
+                    retreat += 1;
+                    if (retreat > maxBacktrackDepth)
+                        maxBacktrackDepth = retreat;
+                    if (d == 0) {
+                        /* no tour starts at (x0, y0) */
+                        this.traversal = null;
+                        break;
+                    }
+                    /* we'll choose different continuation next time */
                     choice[d] += 1;
-                    i(x, y, INFTY);
                     /* jump back */
-                    for (int k = 0; k < MOVES_NO; ++k) {
-                        if (i(x + MOVES_X[k], y + MOVES_Y[k]) == d) {
-                            x += MOVES_X[k];
-                            y += MOVES_Y[k];
-                            break;
-                        }
-                    }
+                    c = path[d-1];
                 } else {
-                    x = mov.x;
-                    y = mov.y;
-                    i(x, y, d);
+                    c = nbr[base + (keys[choice[d]] & 7)];
+                    visit(c, d);
+                    path[d] = c;
                     d += 1;
+                    steps += 1;
+                    retreat = 0;
+                }
+            }
+            nanos = System.nanoTime() - start;
+            if (event != null)
+                event.report(this);
+        }
+
+        /* the total number of continuations of the unvisited neighbours of w */
+        private int continuations(int w) {
+            int sum = 0;
+            for (int j = 0; j < nbrNo[w]; ++j) {
+                int u = nbr[w*MOVES_NO + j];
+                if (traversal[u] == INFTY)
+                    sum += degree[u];
+            }
+            return sum;
+        }
+
+        public TieBreak tieBreak() {
+            return tie;
+        }
+        /* whether the search was stopped before it could tell if there's a tour */
+        public boolean cancelled() {
+            return cancelled;
+        }
+        /* moves made forward */
+        public long steps() {
+            return steps;
+        }
+        /* moves taken back */
+        public long backtracks() {
+            return backtracks;
+        }
+        /* the longest run of moves taken back in a row */
+        public int maxBacktrackDepth() {
+            return maxBacktrackDepth;
+        }
+        /* search time per move, either way */
+        public double nanosPerStep() {
+            long moves = steps + backtracks;
+            return moves == 0 ? 0 : (double) nanos / moves;
+        }
+
+        private void buildNeighbours(long seed) {
+            /* moves in the order of (x, y) of their targets */
+            Integer[] order = new Integer[MOVES_NO];
+            for (int k = 0; k < MOVES_NO; ++k)
+                order[k] = k;
+            Arrays.sort(order, (a, b) -> MOVES_X[a] != MOVES_X[b]
+                    ? MOVES_X[a] - MOVES_X[b] : MOVES_Y[a] - MOVES_Y[b]);
+            if (tie == TieBreak.REVERSE_XY)
+                for (int k = 0; k < MOVES_NO/2; ++k) {
+                    Integer t = order[k];
+                    order[k] = order[MOVES_NO - 1 - k];
+                    order[MOVES_NO - 1 - k] = t;
+                }
+            Random rnd = tie == TieBreak.RANDOM ? new Random(seed) : null;
+
+            nbr = new int[m*n*MOVES_NO];
+            nbrNo = new int[m*n];
+            degree = new int[m*n];
+            for (int y = 0; y < m; ++y) {
+                for (int x = 0; x < n; ++x) {
+                    int c = y*n + x;
+                    for (int k: order) {
+                        int xk = x + MOVES_X[k];
+                        int yk = y + MOVES_Y[k];
+                        if (validCoords(xk, yk))
+                            nbr[c*MOVES_NO + nbrNo[c]++] = yk*n + xk;
+                    }
+                    if (rnd != null)
+                        /* Fisher-Yates */
+                        for (int j = nbrNo[c] - 1; j > 0; --j) {
+                            int r = rnd.nextInt(j + 1);
+                            int t = nbr[c*MOVES_NO + j];
+                            nbr[c*MOVES_NO + j] = nbr[c*MOVES_NO + r];
+                            nbr[c*MOVES_NO + r] = t;
+                        }
+                    degree[c] = nbrNo[c];
                 }
             }
         }
 
+        private void visit(int c, int step) {
+            traversal[c] = step;
+            for (int j = 0; j < nbrNo[c]; ++j)
+                degree[nbr[c*MOVES_NO + j]] -= 1;
+        }
+
+        private void unvisit(int c) {
+            traversal[c] = INFTY;
+            for (int j = 0; j < nbrNo[c]; ++j)
+                degree[nbr[c*MOVES_NO + j]] += 1;
+        }
+
+        /* optimal sorting network for 8 elements (19 comparators) */
+        private static void sort8(int[] a) {
+            cas(a, 0, 2); cas(a, 1, 3); cas(a, 4, 6); cas(a, 5, 7);
+            cas(a, 0, 4); cas(a, 1, 5); cas(a, 2, 6); cas(a, 3, 7);
+            cas(a, 0, 1); cas(a, 2, 3); cas(a, 4, 5); cas(a, 6, 7);
+            cas(a, 2, 4); cas(a, 3, 5);
+            cas(a, 1, 4); cas(a, 3, 6);
+            cas(a, 1, 2); cas(a, 3, 4); cas(a, 5, 6);
+        }
+
+        private static void cas(int[] a, int i, int j) {
+            int x = a[i], y = a[j];
+            a[i] = Math.min(x, y);
+            a[j] = Math.max(x, y);
+        }
+
         public boolean exists() {
             return this.traversal != null;
         }
@@ -108,25 +352,9 @@ public class KnightsTour {
             return traversal[y*n + x];
         }
 
-        private void i(int x, int y, int val) {
-            traversal[y*n + x] = val;
-        }
-
-        public int numberContinuations(Move mov) {
-            int movs = 0;
-            int oldStep = i(mov.x, mov.y);
-            i(mov.x, mov.y, 1);
-            for (int k = 0; k < MOVES_NO; ++k) {
-                if (isFeasible(mov.x + MOVES_X[k], mov.y + MOVES_Y[k])) {
-                    ++movs;
-                }
-            }
-            i(mov.x, mov.y, oldStep);
-            return movs;
-        }
-
         private static boolean isProblemSolvable(int m, int n) {
-            return (m & n & 1) == 0 && /* m and n aren't odd simultaneously */
+            /* m and n aren't odd simultaneously, unless it's a single cell */
+            return ((m & n & 1) == 0 || m*n == 1) &&
                 !(m == 1 && n != 1) &&
                 m != 2 &&
                 m != 4 &&
@@ -137,72 +365,830 @@ public class KnightsTour {
             return 0 <= x && x < n &&
                 0 <= y && y < m;
         }
-        private boolean isFeasible(int x, int y) {
-            return validCoords(x, y) &&
-                i(x, y) == INFTY;
+    }
+
+    /* A portfolio of BoardTraversals: the same search with different tie-breaking
+     * (XY, REVERSE_XY, POHL, then RANDOM with seeds 1, 2, ...), each on its own thread.
+     * A bad first choice can send one of them into a very long backtrack while another
+     * finds a tour straight away, so the first one to find a tour is taken and the rest
+     * are told to stop through a shared flag they look at every few thousand moves.
+     * There's no tour only if every one of them has run out of moves.
+     * All the fixed strategies are run even if there are fewer processors than that:
+     * taking turns on one processor, they still find a tour about as soon as
+     * the luckiest of them does
+     */
+    public static class Portfolio {
+        private static final BoardTraversal.TieBreak[] FIXED = {
+            BoardTraversal.TieBreak.XY,
+            BoardTraversal.TieBreak.REVERSE_XY,
+            BoardTraversal.TieBreak.POHL,
+        };
+
+        public static BoardTraversal solve(int m, int n, int x0, int y0, int threads)
+                throws InterruptedException, ExecutionException {
+            threads = Math.max(threads, FIXED.length);
+            AtomicBoolean cancel = new AtomicBoolean();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            CompletionService<BoardTraversal> done =
+                new ExecutorCompletionService<BoardTraversal>(pool);
+            try {
+                for (int t = 0; t < threads; ++t) {
+                    BoardTraversal.TieBreak tie = t < FIXED.length
+                        ? FIXED[t] : BoardTraversal.TieBreak.RANDOM;
+                    long seed = t - FIXED.length + 1;
+                    done.submit(() -> new BoardTraversal(m, n, x0, y0, tie, seed, cancel));
+                }
+                BoardTraversal last = null;
+                for (int t = 0; t < threads; ++t) {
+                    last = done.take().get();
+                    if (last.exists())
+                        break;
+                }
+                return last;
+            } finally {
+                cancel.set(true);
+                pool.shutdown();
+            }
+        }
+    }
+
+    /* Exhaustive search for knight's tours on boards of at most 64 cells,
+     * with the board held in bitboards: cell y*n + x is bit y*n + x of a long,
+     * and attacks[c] is the mask of the cells a knight reaches from c.
+     *
+     * The search tree is split across a ForkJoinPool: nodes less than SPLIT_DEPTH
+     * moves deep fork a task per continuation, deeper subtrees are searched
+     * sequentially. Board symmetries prune it as well: while the path so far is
+     * fixed by some of the symmetries (e.g. a tour from the centre of the board,
+     * or from a corner of a square one), continuations mapped onto each other
+     * by them lead to the same number of tours, so only one of them is searched
+     * and its tours are counted (or reported) once for each image.
+     *
+     * Two cheap tests cut off dead subtrees: an unvisited neighbour of the
+     * current cell which has no other unvisited neighbours can only be the last
+     * cell, and a closed tour is impossible once its first cell has no
+     * unvisited neighbours left
+     */
+    public static class TourCounter {
+        /* receives tours as cells y*n + x in the order of visiting;
+         * it's called from the pool's threads, and may keep the array
+         */
+        public interface Visitor {
+            void visit(int[] path);
         }
-        
-        private boolean isFeasible(Move mov) {
-            return mov.continuations != INFTY && isFeasible(mov.x, mov.y);
+
+        private static final int SPLIT_DEPTH = 5;
+        /* board dimensions, number of cells, and the attack masks */
+        private int m, n, cells;
+        private long full;
+        private long[] attacks;
+        /* symmetries of the board as permutations of the cells, the identity first */
+        private int[][] sym;
+        private ForkJoinPool pool;
+
+        public TourCounter(int m, int n) {
+            this(m, n, ForkJoinPool.commonPool());
         }
 
-        private void feasibleMoves(int x0, int y0, Move[] moves) {
-            for (int k = 0; k < MOVES_NO; ++k) {
-                moves[k].x = x0 + MOVES_X[k];
-                moves[k].y = y0 + MOVES_Y[k];
-                moves[k].continuations = 0;
-                if (isFeasible(moves[k])) {
-                    moves[k].continuations = numberContinuations(moves[k]);
-                } else {
-                    moves[k].continuations = INFTY;
-                }
-            }
-            /* it is stable, although the implementation might use additional memory */
-            /* TODO: replace it with some heapsort to guarantee stability */
-            /*       and avoid unnecessary reallocations */
-            Arrays.sort(moves, MOVES_BY_CONTINUATIONS);
-        }
-
-        private static class Move {
-            public int x, y, continuations;
-        }
-        private static final Comparator<Move> MOVES_BY_CONTINUATIONS = new MoveComparator();
-        public static class MoveComparator
-                implements Comparator<Move> {
-                @Override
-                public int compare(Move a, Move b) {
-                    if (a == null) return 1;
-                    if (b == null) return -1;
-                    if (a.continuations < b.continuations) return -1;
-                    else if (a.continuations > b.continuations) return 1;
-                    if (a.x < b.x) return -1;
-                    else if (a.x > b.x) return 1;
-                    if (a.y < b.y) return -1;
-                    else if (a.y > b.y) return 1;
+        public TourCounter(int m, int n, ForkJoinPool pool) {
+            if (m < 1 || n < 1 || m*n > 64)
+                throw new IllegalArgumentException("the board must have 1 to 64 cells");
+            this.m = m;
+            this.n = n;
+            this.cells = m*n;
+            this.full = cells == 64 ? -1L : (1L << cells) - 1;
+            this.pool = pool;
+            attacks = new long[cells];
+            for (int y = 0; y < m; ++y)
+                for (int x = 0; x < n; ++x)
+                    for (int k = 0; k < BoardTraversal.MOVES_NO; ++k) {
+                        int xk = x + BoardTraversal.MOVES_X[k];
+                        int yk = y + BoardTraversal.MOVES_Y[k];
+                        if (0 <= xk && xk < n && 0 <= yk && yk < m)
+                            attacks[y*n + x] |= 1L << (yk*n + xk);
+                    }
+            int count = m == n ? 8 : 4;
+            sym = new int[count][cells];
+            for (int y = 0; y < m; ++y)
+                for (int x = 0; x < n; ++x) {
+                    int c = y*n + x;
+                    int rx = n - 1 - x, ry = m - 1 - y;
+                    sym[0][c] = c;
+                    sym[1][c] = y*n + rx;
+                    sym[2][c] = ry*n + x;
+                    sym[3][c] = ry*n + rx;
+                    if (count == 8) {
+                        /* n == m, so (y, x) etc. are cells as well */
+                        sym[4][c] = x*n + y;
+                        sym[5][c] = rx*n + ry;
+                        sym[6][c] = x*n + ry;
+                        sym[7][c] = rx*n + y;
+                    }
+                }
+        }
+
+        /* the number of closed tours, each counted once whatever its direction
+         * and first cell
+         */
+        public long countClosed() {
+            return search(0, true, null) / 2;
+        }
+
+        /* the number of tours, open or closed, starting at (x0, y0) */
+        public long countFrom(int x0, int y0) {
+            return search(y0*n + x0, false, null);
+        }
+
+        /* reports each closed tour once, starting at (0, 0) */
+        public void closedTours(Visitor v) {
+            search(0, true, v);
+        }
+
+        /* reports each tour starting at (x0, y0) */
+        public void toursFrom(int x0, int y0, Visitor v) {
+            search(y0*n + x0, false, v);
+        }
+
+        private long search(int start, boolean closed, Visitor v) {
+            int stab = 0;
+            for (int g = 0; g < sym.length; ++g)
+                if (sym[g][start] == start)
+                    stab |= 1 << g;
+            int[] path = new int[cells];
+            path[0] = start;
+            return pool.invoke(new Search(path, 1, 1L << start, stab,
+                        new int[][] { sym[0] }, closed, v));
+        }
+
+        /* the subtree of the tours beginning with path[0..depth);
+         * stab is the set of symmetries fixing each cell of the path, and every
+         * tour found stands for its images under each of the images[] permutations
+         */
+        private class Search extends RecursiveTask<Long> {
+            private static final long serialVersionUID = 1L;
+            private int[] path;
+            private int depth, stab;
+            private long visited;
+            private int[][] images;
+            private boolean closed;
+            private Visitor visitor;
+
+            Search(int[] path, int depth, long visited, int stab, int[][] images,
+                    boolean closed, Visitor visitor) {
+                this.path = path;
+                this.depth = depth;
+                this.visited = visited;
+                this.stab = stab;
+                this.images = images;
+                this.closed = closed;
+                this.visitor = visitor;
+            }
+
+            @Override
+            protected Long compute() {
+                /* dfs() counts the tour if the path is one already (a 1 x 1 board) */
+                if (depth >= SPLIT_DEPTH || depth == cells)
+                    return dfs(path, depth, visited, stab, images);
+                List<Search> tasks = new ArrayList<Search>();
+                for (int c: children(path, depth, visited, stab)) {
+                    int[] p = path.clone();
+                    p[depth] = c;
+                    tasks.add(new Search(p, depth + 1, visited | 1L << c,
+                                stabilizer(stab, c), extend(images, stab, c),
+                                closed, visitor));
+                }
+                long total = 0;
+                for (Search t: invokeAll(tasks))
+                    total += t.join();
+                return total;
+            }
+
+            private long dfs(int[] path, int depth, long visited, int stab, int[][] images) {
+                if (depth == cells)
+                    return leaf(path, images);
+                long total = 0;
+                if (stab == 1) {
+                    /* no symmetries left: a plain search */
+                    int cur = path[depth-1];
+                    long next = attacks[cur] & ~visited;
+                    if (dead(cur, next, visited))
+                        return 0;
+                    for (; next != 0; next &= next - 1) {
+                        int c = Long.numberOfTrailingZeros(next);
+                        path[depth] = c;
+                        total += dfs(path, depth + 1, visited | 1L << c, stab, images);
+                    }
+                    return total;
+                }
+                for (int c: children(path, depth, visited, stab)) {
+                    path[depth] = c;
+                    total += dfs(path, depth + 1, visited | 1L << c,
+                            stabilizer(stab, c), extend(images, stab, c));
+                }
+                return total;
+            }
+
+            /* one continuation of path[0..depth) from each orbit of stab */
+            private int[] children(int[] path, int depth, long visited, int stab) {
+                int cur = path[depth-1];
+                long next = attacks[cur] & ~visited;
+                if (dead(cur, next, visited))
+                    return new int[0];
+                int[] out = new int[BoardTraversal.MOVES_NO];
+                int cnt = 0;
+                long seen = 0;
+                for (; next != 0; next &= next - 1) {
+                    int c = Long.numberOfTrailingZeros(next);
+                    if ((seen & 1L << c) != 0)
+                        continue;
+                    for (int g = 0; g < sym.length; ++g)
+                        if ((stab & 1 << g) != 0)
+                            seen |= 1L << sym[g][c];
+                    out[cnt++] = c;
+                }
+                return Arrays.copyOf(out, cnt);
+            }
+
+            private boolean dead(int cur, long next, long visited) {
+                long unvisited = full & ~visited;
+                if (closed && unvisited != 0 && (attacks[path[0]] & unvisited) == 0)
+                    return true;
+                if (Long.bitCount(unvisited) == 1)
+                    return false;
+                for (; next != 0; next &= next - 1) {
+                    int u = Long.numberOfTrailingZeros(next);
+                    if ((attacks[u] & unvisited) == 0)
+                        return true;
+                }
+                return false;
+            }
+
+            private long leaf(int[] path, int[][] images) {
+                if (closed && (attacks[path[cells-1]] & 1L << path[0]) == 0)
                     return 0;
+                if (visitor != null)
+                    for (int[] g: images) {
+                        int[] tour = new int[cells];
+                        for (int i = 0; i < cells; ++i)
+                            tour[i] = g[path[i]];
+                        /* one direction of each closed tour */
+                        if (!closed || cells < 3 || tour[1] < tour[cells-1])
+                            visitor.visit(tour);
+                    }
+                return images.length;
+            }
+        }
+
+        private int stabilizer(int stab, int c) {
+            int out = 0;
+            for (int g = 0; g < sym.length; ++g)
+                if ((stab & 1 << g) != 0 && sym[g][c] == c)
+                    out |= 1 << g;
+            return out;
+        }
+
+        /* a path through c stands for its images under each symmetry of stab
+         * mapping c somewhere else, one per cell: compose those with images
+         */
+        private int[][] extend(int[][] images, int stab, int c) {
+            if (stab == 1)
+                return images;
+            List<int[]> reps = new ArrayList<int[]>();
+            long seen = 0;
+            for (int g = 0; g < sym.length; ++g) {
+                if ((stab & 1 << g) == 0 || (seen & 1L << sym[g][c]) != 0)
+                    continue;
+                seen |= 1L << sym[g][c];
+                reps.add(sym[g]);
+            }
+            int[][] out = new int[images.length * reps.size()][];
+            int k = 0;
+            for (int[] img: images)
+                for (int[] g: reps) {
+                    int[] h = new int[cells];
+                    for (int i = 0; i < cells; ++i)
+                        h[i] = img[g[i]];
+                    out[k++] = h;
+                }
+            return out;
+        }
+    }
+
+    /* Closed tour of an even m x n board (m, n >= 6) built by stitching small tours,
+     * in the spirit of Parberry's divide-and-conquer construction.
+     *
+     * The board is cut into blocks of 6, 8 or 10 rows and columns. Each block size
+     * has a closed base tour (found once by a short search) which, besides the two
+     * moves every closed tour makes from the top-left corner cell, contains
+     * the moves (1,1)-(0,3) and (1,1)-(3,0). Two neighbouring blocks are joined
+     * into one cycle by removing a move from each and adding two moves across:
+     *   left | right:  (w-1,0)-(w-2,2) on the left,  (1,1)-(0,3) on the right,
+     *                  joined by (w-1,0)-(1,1) and (w-2,2)-(0,3);
+     *   upper / lower: (0,h-1)-(2,h-2) in the upper, (1,1)-(3,0) in the lower,
+     *                  joined by (0,h-1)-(1,1) and (2,h-2)-(3,0)
+     * (coordinates are local to the blocks, (col,row) from their top-left cells).
+     * Blocks are joined along each row of blocks, and the rows along the first column.
+     *
+     * The tour is never materialized: the joined cycle is walked once block by block,
+     * recording for each block the (at most three) arcs of its base tour that are
+     * passed and where they start in the whole tour. i(x, y) is then O(1), and the
+     * whole construction is O(mn) time and O(number of blocks) memory
+     */
+    public static class StitchedTour implements Tour {
+        /* board dimensions, and the origin of the traversal */
+        private int m, n;
+        private long g0;
+        private long cells;
+        /* block row/column of each row/column, and where the blocks start */
+        private int[] rowBlock, colBlock;
+        private int[] blockY, blockX;
+        private int blockRows, blockCols;
+        /* dimensions of the blocks in each block row/column, and the base tours
+         * by dimensions: those of block (i, j) are bases[rowBase[i] + colBase[j]]
+         */
+        private int[] blockH, blockW;
+        private int[] rowBase, colBase;
+        private BaseTour[] bases = new BaseTour[3*3];
+        /* arcs passed through each block: 3 per block,
+         * arc = start << 8 | len << 1 | (dir < 0 ? 1 : 0), offset = its first step
+         */
+        private int[] arc;
+        private long[] arcOffset;
+        private static final int ARCS = 3;
+
+        /* step numbers are ints (see Tour), so there are at most Integer.MAX_VALUE cells */
+        public static boolean covers(int m, int n) {
+            return m % 2 == 0 && n % 2 == 0 && m >= 6 && n >= 6
+                && (long) m * n <= Integer.MAX_VALUE;
+        }
+
+        public StitchedTour(int m, int n, int x0, int y0) {
+            if (!covers(m, n))
+                return;
+            this.m = m;
+            this.n = n;
+            this.cells = (long) m * n;
+            int[] hs = split(m);
+            int[] ws = split(n);
+            blockRows = hs.length;
+            blockCols = ws.length;
+            blockH = hs;
+            blockW = ws;
+            rowBase = new int[blockRows];
+            colBase = new int[blockCols];
+            for (int i = 0; i < blockRows; ++i)
+                rowBase[i] = 3*((hs[i] - 6) / 2);
+            for (int j = 0; j < blockCols; ++j)
+                colBase[j] = (ws[j] - 6) / 2;
+            for (int h: hs)
+                for (int w: ws)
+                    bases[3*((h - 6) / 2) + (w - 6) / 2] = BaseTour.of(h, w);
+            rowBlock = new int[m];
+            blockY = new int[blockRows];
+            for (int i = 0, y = 0; i < blockRows; y += hs[i++]) {
+                blockY[i] = y;
+                Arrays.fill(rowBlock, y, y + hs[i], i);
+            }
+            colBlock = new int[n];
+            blockX = new int[blockCols];
+            for (int j = 0, x = 0; j < blockCols; x += ws[j++]) {
+                blockX[j] = x;
+                Arrays.fill(colBlock, x, x + ws[j], j);
+            }
+            arc = new int[blockRows*blockCols*ARCS];
+            arcOffset = new long[blockRows*blockCols*ARCS];
+            walk();
+            g0 = 0;
+            g0 = step(x0, y0);
+        }
+
+        /* sizes of 6, 8 and 10 adding up to an even len >= 6 */
+        private static int[] split(int len) {
+            int[] parts = new int[len / 6];
+            int k = 0;
+            while (len > 10) {
+                int part = len - 8 >= 6 ? 8 : 6;
+                parts[k++] = part;
+                len -= part;
+            }
+            parts[k++] = len;
+            return Arrays.copyOf(parts, k);
+        }
+
+        private int height(int i) {
+            return blockH[i];
+        }
+        private int width(int j) {
+            return blockW[j];
+        }
+        private BaseTour base(int i, int j) {
+            return bases[rowBase[i] + colBase[j]];
+        }
+        private BaseTour base(int b) {
+            return base(b / blockCols, b % blockCols);
+        }
+
+        /* Cuts of block b (in its local cells), as ports: ports[4k] is a cell
+         * where the tour leaves the block, ports[4k+1] its neighbour in the base tour
+         * along the removed move, ports[4k+2] the block across and ports[4k+3]
+         * the local cell across.
+         * Returns the number of ports
+         */
+        private int ports(int b, int[] ports) {
+            int i = b / blockCols, j = b % blockCols;
+            int h = height(i), w = width(j);
+            int k = 0;
+            if (j > 0) {
+                int a = b - 1, wa = width(j - 1);
+                k = port(ports, k, cell(1, 1, w), cell(0, 3, w), a, cell(wa - 1, 0, wa));
+                k = port(ports, k, cell(0, 3, w), cell(1, 1, w), a, cell(wa - 2, 2, wa));
+            }
+            if (j + 1 < blockCols) {
+                int a = b + 1, wa = width(j + 1);
+                k = port(ports, k, cell(w - 1, 0, w), cell(w - 2, 2, w), a, cell(1, 1, wa));
+                k = port(ports, k, cell(w - 2, 2, w), cell(w - 1, 0, w), a, cell(0, 3, wa));
+            }
+            if (j == 0 && i > 0) {
+                int a = b - blockCols, ha = height(i - 1), wa = width(0);
+                k = port(ports, k, cell(1, 1, w), cell(3, 0, w), a, cell(0, ha - 1, wa));
+                k = port(ports, k, cell(3, 0, w), cell(1, 1, w), a, cell(2, ha - 2, wa));
+            }
+            if (j == 0 && i + 1 < blockRows) {
+                int a = b + blockCols, wa = width(0);
+                k = port(ports, k, cell(0, h - 1, w), cell(2, h - 2, w), a, cell(1, 1, wa));
+                k = port(ports, k, cell(2, h - 2, w), cell(0, h - 1, w), a, cell(3, 0, wa));
+            }
+            return k / 4;
+        }
+
+        private static int cell(int x, int y, int w) {
+            return y*w + x;
+        }
+
+        private static int port(int[] ports, int k, int u, int v, int block, int across) {
+            ports[k] = u;
+            ports[k+1] = v;
+            ports[k+2] = block;
+            ports[k+3] = across;
+            return k + 4;
+        }
+
+        /* walks the joined cycle arc by arc, filling arc[] and arcOffset[] */
+        private void walk() {
+            int[] ports = new int[4*2*ARCS];
+            int[] used = new int[blockRows*blockCols];
+            if (blockRows*blockCols == 1) {
+                arc[0] = 0 << 8 | base(0).len << 1;
+                return;
+            }
+            /* start at the first port of block 0, heading away from its cut */
+            int b = 0;
+            ports(b, ports);
+            BaseTour t = base(b);
+            int p = t.pos[ports[0]];
+            int dir = t.pos[ports[1]] == (p + 1) % t.len ? -1 : 1;
+            long offset = 0;
+            while (offset < cells) {
+                int np = ports(b, ports);
+                /* the nearest port ahead whose cut is in front of it */
+                int best = -1, dist = Integer.MAX_VALUE;
+                for (int k = 0; k < np; ++k) {
+                    int q = t.pos[ports[4*k]];
+                    if (t.pos[ports[4*k+1]] != Math.floorMod(q + dir, t.len))
+                        continue;
+                    int d = Math.floorMod((q - p)*dir, t.len);
+                    if (d < dist) {
+                        dist = d;
+                        best = k;
+                    }
+                }
+                int a = b*ARCS + used[b]++;
+                arc[a] = p << 8 | (dist + 1) << 1 | (dir < 0 ? 1 : 0);
+                arcOffset[a] = offset;
+                offset += dist + 1;
+
+                /* cross over to the next block */
+                b = ports[4*best+2];
+                int across = ports[4*best+3];
+                t = base(b);
+                p = t.pos[across];
+                ports(b, ports);
+                dir = 1;
+                for (int k = 0; k < 2*ARCS; ++k) {
+                    if (ports[4*k] == across) {
+                        dir = t.pos[ports[4*k+1]] == (p + 1) % t.len ? -1 : 1;
+                        break;
+                    }
                 }
+            }
+        }
+
+        /* position of (x, y) in the cycle, counted from the origin of the traversal */
+        private long step(int x, int y) {
+            int i = rowBlock[y], j = colBlock[x];
+            int b = i*blockCols + j;
+            BaseTour t = base(i, j);
+            int p = t.pos[cell(x - blockX[j], y - blockY[i], blockW[j])];
+            for (int a = b*ARCS; a < (b+1)*ARCS; ++a) {
+                int start = arc[a] >>> 8;
+                int len = (arc[a] >>> 1) & 0x7F;
+                int dir = (arc[a] & 1) != 0 ? -1 : 1;
+                int d = Math.floorMod((p - start)*dir, t.len);
+                if (d < len)
+                    return Math.floorMod(arcOffset[a] + d - g0, cells);
+            }
+            throw new IllegalStateException("cell off the tour: " + x + ", " + y);
+        }
+
+        public boolean exists() {
+            return arc != null;
+        }
+
+        public int i(int x, int y) {
+            if (!exists() || x < 0 || x >= n || y < 0 || y >= m)
+                return INFTY;
+            return (int) step(x, y);
         }
     }
 
-    public static void main(String[] args) {
-        int m = Integer.parseInt(args[0]);
-        int n = Integer.parseInt(args[1]);
-        int x0 = (int) args[2].charAt(0) - (int) 'a';
-        int y0 = (int) args[2].charAt(1) - (int) '1';
+    /* A closed tour of an h x w block (h, w in {6, 8, 10}) which contains
+     * the moves (1,1)-(0,3) and (1,1)-(3,0) (see StitchedTour).
+     * Found by Warnsdorff's rule with backtracking: the path starts with
+     * (1,1), (0,3) and must end at (3,0); a move is abandoned as soon as some
+     * unvisited cell is left with fewer than two ways in and out
+     */
+    private static class BaseTour {
+        /* cyc[k] = local cell (row*w + col) visited k-th, pos is its inverse */
+        final int[] cyc;
+        final int[] pos;
+        final int len;
+        private static final BaseTour[] CACHE = new BaseTour[11*11];
+        private static final int[] MOVES_X = { 1,  1, -1, -1, 2,  2, -2, -2};
+        private static final int[] MOVES_Y = { 2, -2,  2, -2, 1, -1,  1, -1};
+
+        static synchronized BaseTour of(int h, int w) {
+            if (CACHE[h*11 + w] == null)
+                CACHE[h*11 + w] = new BaseTour(h, w);
+            return CACHE[h*11 + w];
+        }
+
+        private int[][] nbr;
+        private int[] degree;
+        private boolean[] visited;
+
+        private BaseTour(int h, int w) {
+            len = h*w;
+            nbr = new int[len][];
+            degree = new int[len];
+            visited = new boolean[len];
+            for (int y = 0; y < h; ++y) {
+                for (int x = 0; x < w; ++x) {
+                    int[] t = new int[MOVES_X.length];
+                    int k = 0;
+                    for (int j = 0; j < MOVES_X.length; ++j) {
+                        int xj = x + MOVES_X[j], yj = y + MOVES_Y[j];
+                        if (0 <= xj && xj < w && 0 <= yj && yj < h)
+                            t[k++] = yj*w + xj;
+                    }
+                    nbr[y*w + x] = Arrays.copyOf(t, k);
+                    degree[y*w + x] = k;
+                }
+            }
+            int end = 0*w + 3;
+            cyc = new int[len];
+            cyc[0] = 1*w + 1;
+            cyc[1] = 3*w + 0;
+            visit(cyc[0]);
+            visit(cyc[1]);
+            int[] choice = new int[len];
+            int[] keys = new int[MOVES_X.length];
+            int d = 2;
+            while (d < len) {
+                int c = cyc[d-1];
+                int cnt = 0;
+                for (int v: nbr[c])
+                    if (!visited[v] && (v != end || d == len - 1))
+                        keys[cnt++] = degree[v] << 8 | v;
+                Arrays.sort(keys, 0, cnt);
+                if (choice[d] >= cnt) {
+                    choice[d] = 0;
+                    d -= 1;
+                    if (d < 2)
+                        throw new IllegalStateException("no base tour for " + h + "x" + w);
+                    unvisit(cyc[d]);
+                    choice[d] += 1;
+                    continue;
+                }
+                int v = keys[choice[d]] & 0xFF;
+                cyc[d] = v;
+                visit(v);
+                if (d + 1 < len && (stuck(c, v, end) || stuck(v, v, end))) {
+                    unvisit(v);
+                    choice[d] += 1;
+                } else {
+                    d += 1;
+                }
+            }
+            pos = new int[len];
+            for (int k = 0; k < len; ++k)
+                pos[cyc[k]] = k;
+            nbr = null;
+            degree = null;
+            visited = null;
+        }
+
+        private void visit(int c) {
+            visited[c] = true;
+            for (int v: nbr[c])
+                degree[v] -= 1;
+        }
+        private void unvisit(int c) {
+            visited[c] = false;
+            for (int v: nbr[c])
+                degree[v] += 1;
+        }
+
+        /* whether a neighbour of c can no longer be passed through, the knight being at head */
+        private boolean stuck(int c, int head, int end) {
+            for (int u: nbr[c]) {
+                if (visited[u])
+                    continue;
+                int ways = degree[u];
+                for (int v: nbr[u])
+                    if (v == head)
+                        ways += 1;
+                if (ways < (u == end ? 1 : 2))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    /* Writes boards numbered by tours, formatting the step numbers straight into
+     * a reusable byte buffer which goes to the channel whenever it fills up.
+     *  text:   rows of decimal numbers separated by spaces, one row per line;
+     *  binary: m and n, then the m*n step numbers row by row (from the top),
+     *          all as 4-byte little-endian ints
+     */
+    public static class BoardWriter {
+        private static final int BUFFER_SIZE = 1 << 16;
+        /* the longest int is 10 digits, and a separator */
+        private static final int MAX_FIELD = 11;
+        private WritableByteChannel out;
+        private byte[] buf = new byte[BUFFER_SIZE];
+        private ByteBuffer bb = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+        private int pos;
+
+        public BoardWriter(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        public BoardWriter(OutputStream out) {
+            this(Channels.newChannel(out));
+        }
+
+        public void text(Tour tour, int m, int n) throws IOException {
+            for (int y = 0; y < m; ++y) {
+                for (int x = 0; x < n; ++x) {
+                    if (BUFFER_SIZE - pos < MAX_FIELD)
+                        flush();
+                    pos = format(tour.i(x, y), pos);
+                    buf[pos++] = (byte) (x == n - 1 ? '\n' : ' ');
+                }
+            }
+        }
+
+        public void binary(Tour tour, int m, int n) throws IOException {
+            putInt(m);
+            putInt(n);
+            for (int y = 0; y < m; ++y)
+                for (int x = 0; x < n; ++x)
+                    putInt(tour.i(x, y));
+        }
+
+        public void text(String line) throws IOException {
+            for (int k = 0; k < line.length(); ++k) {
+                if (pos == BUFFER_SIZE)
+                    flush();
+                buf[pos++] = (byte) line.charAt(k);
+            }
+            if (pos == BUFFER_SIZE)
+                flush();
+            buf[pos++] = '\n';
+        }
+
+        private void putInt(int v) throws IOException {
+            if (BUFFER_SIZE - pos < 4)
+                flush();
+            bb.putInt(pos, v);
+            pos += 4;
+        }
+
+        /* writes v >= 0 in decimal at buf[at..], returns the position after it */
+        private int format(int v, int at) {
+            int len = 1;
+            for (int t = v; t >= 10; t /= 10)
+                len += 1;
+            int end = at + len;
+            for (int k = end - 1; k >= at; --k) {
+                buf[k] = (byte) ('0' + v % 10);
+                v /= 10;
+            }
+            return end;
+        }
+
+        public void flush() throws IOException {
+            bb.clear().limit(pos);
+            while (bb.hasRemaining())
+                out.write(bb);
+            pos = 0;
+        }
+    }
+
+    /* usage: KnightsTour [-d] [-p] [-v] [-b] M N SQUARE
+     *        KnightsTour -c M N
+     *        KnightsTour -n M N SQUARE
+     *  M rows, N columns; SQUARE is a column in letters (a..z, aa, ab, ...)
+     *  followed by a row number counted from the bottom, e.g. a1, e5 or ab120.
+     *  -d builds the tour by StitchedTour instead (on boards it covers),
+     *  without keeping the board in memory;
+     *  -p runs a Portfolio of searches, one per processor;
+     *  -v prints the statistics of the BoardTraversal search to stderr;
+     *  -b writes the board in the binary format of BoardWriter;
+     *  -c prints the number of closed tours of an M x N board (at most 64 cells),
+     *  -n the number of tours starting at SQUARE
+     */
+    public static void main(String[] args) throws Exception {
+        run(args, System.in, new FileOutputStream(FileDescriptor.out), System.err);
+    }
+
+    /* main, with its standard streams given */
+    public static void run(String[] args, InputStream in, OutputStream rawOut, PrintStream err)
+            throws Exception {
+        BoardWriter out = new BoardWriter(rawOut);
+        try {
+            run(args, out, err);
+        } finally {
+            out.flush();
+        }
+    }
+
+    private static void run(String[] args, BoardWriter out, PrintStream err) throws Exception {
+        int a = 0;
+        boolean stitched = false, portfolio = false, verbose = false;
+        if (args[0].equals("-c")) {
+            out.text(String.valueOf(new TourCounter(Integer.parseInt(args[1]),
+                        Integer.parseInt(args[2])).countClosed()));
+            return;
+        }
+        boolean count = false, binary = false;
+        for (; args[a].startsWith("-"); ++a) {
+            if (args[a].equals("-d"))
+                stitched = true;
+            else if (args[a].equals("-p"))
+                portfolio = true;
+            else if (args[a].equals("-v"))
+                verbose = true;
+            else if (args[a].equals("-n"))
+                count = true;
+            else if (args[a].equals("-b"))
+                binary = true;
+        }
+        int m = Integer.parseInt(args[a]);
+        int n = Integer.parseInt(args[a+1]);
+        String square = args[a+2];
+        int x0 = 0;
+        int k = 0;
+        while (Character.isLetter(square.charAt(k)))
+            x0 = 26*x0 + (square.charAt(k++) - 'a' + 1);
+        x0 -= 1;
+        int y0 = Integer.parseInt(square.substring(k)) - 1;
         y0 = m - y0 - 1;
-        BoardTraversal tour = new BoardTraversal(m, n, x0, y0);
-        PrintWriter pw = new PrintWriter(System.out);
-        if (!tour.exists()) {
-            pw.print("unsolvable");
+        if ((long) m * n > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("the board must have at most "
+                    + Integer.MAX_VALUE + " cells");
+        if (count) {
+            out.text(String.valueOf(new TourCounter(m, n).countFrom(x0, y0)));
             return;
         }
-        for (int y = 0; y < m; ++y) {
-            for (int x = 0; x < n - 1; ++x) {
-                pw.print(tour.i(x, y));
-                pw.print(' ');
-            }
-            pw.println(tour.i(n-1,y));
+        Tour tour;
+        if (stitched && StitchedTour.covers(m, n))
+            tour = new StitchedTour(m, n, x0, y0);
+        else if (portfolio)
+            tour = Portfolio.solve(m, n, x0, y0, Runtime.getRuntime().availableProcessors());
+        else
+            tour = new BoardTraversal(m, n, x0, y0);
+        if (verbose && tour instanceof BoardTraversal) {
+            BoardTraversal t = (BoardTraversal) tour;
+            err.printf("%s: steps %d, backtracks %d, max backtrack depth %d, %.1f ns/step%n",
+                    t.tieBreak(), t.steps(), t.backtracks(), t.maxBacktrackDepth(),
+                    t.nanosPerStep());
         }
-        pw.flush();
+        if (!tour.exists())
+            out.text("unsolvable");
+        else if (binary)
+            out.binary(tour, m, n);
+        else
+            out.text(tour, m, n);
     }
 }
@@ -13,21 +13,52 @@
  * limitations under the License.
  */
 
-import java.io.InputStreamReader;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 import java.lang.Iterable;
 import java.lang.IndexOutOfBoundsException;
 
 
 public class MazeWalker {
-    private static final int MAX_LEN = 1024;
     private static final int MAX_DEG = 4;
-    private static final int INFTY = MAX_LEN+1;
-    private static final int EMPTY = INFTY;
+    /* no serial is negative; the distance sentinel is Maze.infty() */
+    private static final int EMPTY = -1;
 
     public static class Point2
     {
@@ -62,129 +93,446 @@ public class MazeWalker {
         }
     }
 
+    /* a graph whose vertices are cells of the plane */
+    public interface Plane
+    {
+        int itox(int i);
+        int itoy(int i);
+    }
+
+    /* (x,y) -> serial map; EMPTY for the cells not in it */
+    private abstract static class CellIndex
+    {
+        public abstract int get(int x, int y);
+        public abstract void put(int x, int y, int val);
+        /* slots looked at by put(), for MazeBuildEvent; get() is a pure read,
+         * and is called concurrently by the parallel and query BFS engines
+         */
+        public abstract long probes();
+    }
+
+    /* (x,y) -> serial hash map with linear probing.
+     * Keys are packed into a single long, values are kept in a parallel int[];
+     * a slot is free iff its value is EMPTY.
+     * Neither put() nor get() allocate anything (except when growing the table)
+     */
+    private static class CoordinateIndex extends CellIndex
+    {
+        private long[] keys;
+        private int[] vals;
+        private int mask;
+        private int size;
+        private long probes;
+
+        public CoordinateIndex(int expected) {
+            /* keep the load factor under 1/2 */
+            int cap = 16;
+            while (cap < 2*expected)
+                cap <<= 1;
+            allocate(cap);
+        }
+
+        /* wraps a table saved by MazeSnapshot */
+        private CoordinateIndex(long[] keys, int[] vals, int size) {
+            this.keys = keys;
+            this.vals = vals;
+            this.mask = vals.length - 1;
+            this.size = size;
+        }
+
+        private void allocate(int cap) {
+            this.keys = new long[cap];
+            this.vals = new int[cap];
+            this.mask = cap - 1;
+            Arrays.fill(vals, EMPTY);
+        }
+
+        private static long pack(int x, int y) {
+            return ((long) x << 32) | (y & 0xFFFFFFFFL);
+        }
+
+        /* murmur3 finalizer, spreads neighbouring cells over the table */
+        private static int hash(long key) {
+            key ^= key >>> 33;
+            key *= 0xFF51AFD7ED558CCDL;
+            key ^= key >>> 33;
+            key *= 0xC4CEB9FE1A85EC53L;
+            key ^= key >>> 33;
+            return (int) key;
+        }
+
+        public int get(int x, int y) {
+            long key = pack(x, y);
+            int h = hash(key) & mask;
+            while (vals[h] != EMPTY) {
+                if (keys[h] == key)
+                    return vals[h];
+                h = (h + 1) & mask;
+            }
+            return EMPTY;
+        }
+
+        public void put(int x, int y, int val) {
+            long key = pack(x, y);
+            int h = hash(key) & mask;
+            probes += 1;
+            while (vals[h] != EMPTY) {
+                if (keys[h] == key) {
+                    vals[h] = val;
+                    return;
+                }
+                h = (h + 1) & mask;
+                probes += 1;
+            }
+            keys[h] = key;
+            vals[h] = val;
+            if (++size > (mask + 1) / 2)
+                grow();
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldVals = vals;
+            allocate(2*(mask + 1));
+            for (int i = 0; i < oldVals.length; ++i) {
+                if (oldVals[i] == EMPTY) continue;
+                int h = hash(oldKeys[i]) & mask;
+                while (vals[h] != EMPTY)
+                    h = (h + 1) & mask;
+                keys[h] = oldKeys[i];
+                vals[h] = oldVals[i];
+            }
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        public long probes() {
+            return probes;
+        }
+    }
+
+    /* (x,y) -> serial map for walks covering their area densely:
+     * the plane is cut into TILE x TILE tiles, and a tile, once the walk enters it,
+     * gets an array of the serials of its cells, row by row. The arrays are kept
+     * off-heap, SLAB_TILES of them to a direct buffer; a small hash map of tile
+     * coordinates (the directory) tells where the tile of (x, y) is, so only the
+     * tiles the walk has been to take memory. Walks (and neighbour lookups) move
+     * from a cell to the next one, so the last tile looked up is remembered, and
+     * most lookups are a shift, a mask and a single read. The Maze is read from
+     * several threads at once (ParallelPaths, QueryService), so that's a single
+     * reference to an immutable Tile, read once per lookup: threads may replace
+     * each other's tile, but never see the coordinates of one with the cells
+     * of another
+     */
+    private static class TileIndex extends CellIndex
+    {
+        private static final int TILE_BITS = 6;
+        private static final int TILE = 1 << TILE_BITS;
+        private static final int TILE_MASK = TILE - 1;
+        private static final int TILE_CELLS = TILE * TILE;
+        private static final int SLAB_TILES = 64;
+
+        /* (tile x, tile y) -> tile number */
+        private CoordinateIndex directory = new CoordinateIndex(SLAB_TILES);
+        /* tile t is at (t % SLAB_TILES) * TILE_CELLS in slabs[t / SLAB_TILES] */
+        private IntBuffer[] slabs = new IntBuffer[4];
+        private Tile[] tiles = new Tile[SLAB_TILES];
+        private int ntiles;
+        /* the last tile looked up */
+        private Tile cur = new Tile(Integer.MIN_VALUE, 0, null, 0);
+        private long probes;
+
+        /* tile (x, y) is cells[base..base+TILE_CELLS), cells == null if there's none */
+        private static final class Tile {
+            final int x, y;
+            final IntBuffer cells;
+            final int base;
+
+            Tile(int x, int y, IntBuffer cells, int base) {
+                this.x = x;
+                this.y = y;
+                this.cells = cells;
+                this.base = base;
+            }
+        }
+
+        public int get(int x, int y) {
+            Tile t = cur;
+            if (x >> TILE_BITS != t.x || y >> TILE_BITS != t.y)
+                cur = t = find(x >> TILE_BITS, y >> TILE_BITS, false);
+            if (t.cells == null)
+                return EMPTY;
+            return t.cells.get(t.base + ((y & TILE_MASK) << TILE_BITS | (x & TILE_MASK)));
+        }
+
+        public void put(int x, int y, int val) {
+            Tile t = cur;
+            if (x >> TILE_BITS != t.x || y >> TILE_BITS != t.y || t.cells == null)
+                cur = t = find(x >> TILE_BITS, y >> TILE_BITS, true);
+            probes += 1;
+            t.cells.put(t.base + ((y & TILE_MASK) << TILE_BITS | (x & TILE_MASK)), val);
+        }
+
+        /* the tile (tx, ty), added if asked to */
+        private Tile find(int tx, int ty, boolean add) {
+            int t = directory.get(tx, ty);
+            if (t != EMPTY)
+                return tiles[t];
+            if (!add)
+                return new Tile(tx, ty, null, 0);
+            t = addTile(tx, ty);
+            directory.put(tx, ty, t);
+            return tiles[t];
+        }
+
+        private int addTile(int tx, int ty) {
+            int t = ntiles++;
+            int s = t / SLAB_TILES;
+            if (s == slabs.length)
+                slabs = Arrays.copyOf(slabs, 2*s);
+            if (t == tiles.length)
+                tiles = Arrays.copyOf(tiles, 2*t);
+            if (slabs[s] == null)
+                slabs[s] = ByteBuffer.allocateDirect(4 * SLAB_TILES * TILE_CELLS)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+            int base = (t % SLAB_TILES) * TILE_CELLS;
+            for (int i = 0; i < TILE_CELLS; ++i)
+                slabs[s].put(base + i, EMPTY);
+            tiles[t] = new Tile(tx, ty, slabs[s], base);
+            return t;
+        }
+
+        public long probes() {
+            return probes + directory.probes();
+        }
+
+        /* cells the tiles have room for */
+        public long capacity() {
+            return (long) ntiles * TILE_CELLS;
+        }
+    }
+
     public static class Maze
+            implements Plane
     {
-        /* it'd be much better to write integers-specific implementation */
-        /* of hashmap with linear probing */
-        private HashMap<Point2, Integer> xytoi;
+        /* a CoordinateIndex, or a TileIndex while the walk fills its area
+         * densely (see mapxytoi) */
+        private CellIndex xytoi;
+        /* serial to plane mapping, in the coordinates of the walk itself
+         * (i.e. the first cell is (0, 0)); grown on demand */
         private int[] itox;
         private int[] itoy;
-        private int xo, yo, xd, yd;
+        /* bounding box of the walk */
+        private int xmin, ymin, xmax, ymax;
+        /* the number of cells at which to consider the tiles next */
+        private int densityCheck = DENSITY_CHECK;
+        /* current position of the walker and its serial */
+        private int x, y, u;
         private int n;
 
-        public Maze(String path) {
-            this.xytoi = new HashMap<Point2, Integer>();
-            /* length of original path */
-            int moves = path.length();
-            while (!Character.isLetter(path.charAt(moves-1)))
-                --moves;
-            /* destination (see below) */
-            int xd, yd;
-            /* (xo, yo) is the origin */
-            int xo = 0, yo = 0;
-            int x = 0, y = 0;
-            int[] DX = new int[1+(int)'U'];
-            int[] DY = new int[1+(int)'U'];
+        private static final int[] DX = new int[128];
+        private static final int[] DY = new int[128];
+        private static final boolean[] IS_MOVE = new boolean[128];
+        static {
             DX['R'] = 1;  DY['R'] = 0;
             DX['L'] = -1; DY['L'] = 0;
             DX['U'] = 0;  DY['U'] = 1;
             DX['D'] = 0;  DY['D'] = -1;
+            IS_MOVE['R'] = IS_MOVE['L'] = IS_MOVE['U'] = IS_MOVE['D'] = true;
+        }
+        /* chunk size for reading streams and mapping files */
+        private static final int BUF_LEN = 1 << 16;
+        private static final long MAP_LEN = 1L << 30;
+        /* tiles are taken once at least 1/DENSE of the bounding box is visited,
+         * and given up (for the hash map) once less than 1/SPARSE of the cells of
+         * the tiles are, i.e. once they take some twice the memory of the hash map
+         * (the walk has left its dense patch and gone on to cover a large area
+         * thinly); that's checked whenever the number of cells doubles,
+         * from DENSITY_CHECK on
+         */
+        private static final int DENSE = 8;
+        private static final int SPARSE = 16;
+        private static final int DENSITY_CHECK = 1 << 12;
 
-            for (int i = 0; i < moves; ++i) {
-                int mov = (int) path.charAt(i);
-                x += DX[mov];
-                y += DY[mov];
-                if (x < xo) xo = x;
-                if (y < yo) yo = y;
-            }
-            /* (xd, yd) is the destination point */
-            xd = x;
-            yd = y;
-
-            /* (xo, yo) is the new origin, so we translate all the points */
-            xo = -xo; yo = -yo;
-            xd += xo; yd += yo;
-
-            /* mapping between (x,y) plane and serial indices */
-            itox = new int[moves + 1];
-            itoy = new int[moves + 1];
-
-            x = xo;
-            y = yo;
-            int umax = 0; /* last serial number used */
-            int u = 0; /* current vertice serial */
-            mapxytoi(x, y, u);
-            itox[u] = x;
-            itoy[u] = y;
-            for (int i = 0; i < moves; ++i) {
-                int mov = (int) path.charAt(i);
-                int xn = x + DX[mov];
-                int yn = y + DY[mov];
-                int v = xytoi(xn, yn);
-                if (v == EMPTY) {
-                    v = ++umax;
-                    mapxytoi(xn, yn, v);
-                    itox[v] = xn;
-                    itoy[v] = yn;
-                }
-                x = xn;
-                y = yn;
-                u = v;
+        private Maze(int expected) {
+            this.xytoi = new CoordinateIndex(expected);
+            this.itox = new int[expected];
+            this.itoy = new int[expected];
+            this.n = 0;
+            this.u = mapxytoi(0, 0);
+        }
+
+        /* a maze restored by MazeSnapshot */
+        private Maze(CoordinateIndex xytoi, int[] itox, int[] itoy, int n,
+                int xmin, int ymin, int x, int y, int u) {
+            this.xytoi = xytoi;
+            this.itox = itox;
+            this.itoy = itoy;
+            this.n = n;
+            this.xmin = xmin;
+            this.ymin = ymin;
+            for (int i = 0; i < n; ++i) {
+                if (itox[i] > xmax) xmax = itox[i];
+                if (itoy[i] > ymax) ymax = itoy[i];
             }
+            while (densityCheck <= n)
+                densityCheck *= 2;
+            this.x = x;
+            this.y = y;
+            this.u = u;
+        }
+
+        /* a maze with the origin only, to be extended by move() */
+        public Maze() {
+            this(BUF_LEN);
+        }
+
+        public Maze(String path) {
+            /* a path of `moves` steps visits at most `moves+1` cells */
+            this(path.length() + 1);
+            MazeBuildEvent event = JFR ? new MazeBuildEvent() : null;
+            for (int i = 0; i < path.length(); ++i)
+                move(path.charAt(i));
+            if (event != null)
+                event.report(this, path.length());
+        }
 
-            this.n = xytoi.size();
-            this.xo = xo;
-            this.yo = yo;
-            this.xd = xd;
-            this.yd = yd;
+        /* reads the path from a stream in a single pass;
+         * memory used is proportional to the number of distinct cells visited
+         */
+        public Maze(InputStream in) throws IOException {
+            this(BUF_LEN);
+            MazeBuildEvent event = JFR ? new MazeBuildEvent() : null;
+            byte[] buf = new byte[BUF_LEN];
+            long total = 0;
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                for (int i = 0; i < len; ++i)
+                    move(buf[i]);
+                total += len;
+            }
+            if (event != null)
+                event.report(this, total);
+        }
+
+        /* same as above, but the file is mapped (by 1GiB windows) instead of read */
+        public Maze(FileChannel ch) throws IOException {
+            this(BUF_LEN);
+            MazeBuildEvent event = JFR ? new MazeBuildEvent() : null;
+            long size = ch.size();
+            for (long pos = 0; pos < size; pos += MAP_LEN) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY,
+                        pos, Math.min(MAP_LEN, size - pos));
+                while (buf.hasRemaining())
+                    move(buf.get());
+            }
+            if (event != null)
+                event.report(this, size);
+        }
+
+        public static boolean isMove(int mov) {
+            return 0 <= mov && mov < IS_MOVE.length && IS_MOVE[mov];
+        }
+
+        /* extends the walk by one step and returns the serial of the cell reached
+         * (it is n()-1 iff the cell is new);
+         * characters other than L, R, U, D (e.g. line breaks) are skipped
+         */
+        public int move(int mov) {
+            if (!isMove(mov))
+                return u;
+            x += DX[mov];
+            y += DY[mov];
+            int v = xytoi.get(x, y);
+            if (v == EMPTY)
+                v = mapxytoi(x, y);
+            u = v;
+            return u;
         }
 
         /*+-----------------------------------------+
          *| Manifold structure (coordinate systems) |
          *+-----------------------------------------+
+         * Internally the walk starts at (0, 0);
+         * the public coordinates are translated so that
+         * the bounding box of the walk starts at (0, 0) instead
          */
 
-        private void mapxytoi(int x, int y, int i) {
-            xytoi.put(new Point2(x, y), i);
+        /* assigns the next serial to (x, y) */
+        private int mapxytoi(int x, int y) {
+            int i = n++;
+            if (i == itox.length) {
+                itox = Arrays.copyOf(itox, 2*i);
+                itoy = Arrays.copyOf(itoy, 2*i);
+            }
+            xytoi.put(x, y, i);
+            itox[i] = x;
+            itoy[i] = y;
+            if (x < xmin) xmin = x;
+            if (y < ymin) ymin = y;
+            if (x > xmax) xmax = x;
+            if (y > ymax) ymax = y;
+            if (n == densityCheck) {
+                densityCheck *= 2;
+                if (!tiled() && (long) DENSE * n >= (long) (xmax - xmin + 1) * (ymax - ymin + 1))
+                    reindex(new TileIndex());
+                else if (tiled() && (long) SPARSE * n < ((TileIndex) xytoi).capacity())
+                    reindex(new CoordinateIndex(n));
+            }
+            return i;
+        }
+
+        /* moves the cells over to another index */
+        private void reindex(CellIndex index) {
+            for (int i = 0; i < n; ++i)
+                index.put(itox[i], itoy[i], i);
+            xytoi = index;
+        }
+
+        public boolean tiled() {
+            return xytoi instanceof TileIndex;
         }
         /* plane to serial  mapping */
         public int xytoi(int x, int y) {
-            Point2 p = new Point2(x, y);
-            if (this.xytoi.containsKey(p))
-                return this.xytoi.get(p);
-            return EMPTY;
+            return xytoi.get(x + xmin, y + ymin);
         }
         /* serial to plane */
         public int itox(int i) {
-            return itox[i];
+            return itox[i] - xmin;
         }
         public int itoy(int i) {
-            return itoy[i];
+            return itoy[i] - ymin;
         }
         /* origin vertice */
         public int originX() {
-            return this.xo;
+            return -xmin;
         }
         public int originY() {
-            return this.yo;
+            return -ymin;
         }
         public int originSerial() {
             return 0;
         }
         /* destination vertice */
         public int destinationX() {
-            return this.xd;
+            return this.x - xmin;
         }
         public int destinationY() {
-            return this.yd;
+            return this.y - ymin;
         }
         public int destinationSerial() {
-            return xytoi(this.xd, this.yd);
+            return this.u;
         }
         /* number of vertices */
         public int n() {
             return this.n;
         }
+        /* distance sentinel: no shortest path in the maze is that long */
+        public int infty() {
+            return this.n;
+        }
 
         /* graph structure */
 
@@ -201,6 +549,56 @@ public class MazeWalker {
                 -1 <= y1 && y1 <= 1;
         }
 
+        /* neighbours of a cell, in the order they're visited by BFS */
+        private static final int[] DXN = { -1, 1, 0, 0 };
+        private static final int[] DYN = { 0, 0, -1, 1 };
+
+        /* compressed adjacency: neighbours of v are
+         * adjList[adjStart[v]] .. adjList[adjStart[v+1]-1].
+         * It is (re)built lazily whenever the maze has grown since the last build
+         */
+        private int[] adjStart;
+        private int[] adjList;
+        private int adjN = -1;
+
+        private void buildAdjacency() {
+            if (adjN == n)
+                return;
+            adjStart = new int[n + 1];
+            adjList = new int[MAX_DEG*n];
+            int e = 0;
+            for (int v = 0; v < n; ++v) {
+                adjStart[v] = e;
+                for (int k = 0; k < MAX_DEG; ++k) {
+                    int w = neighbourAt(v, k);
+                    if (w != EMPTY)
+                        adjList[e++] = w;
+                }
+            }
+            adjStart[n] = e;
+            adjN = n;
+        }
+
+        /* k-th (k < MAX_DEG) grid neighbour of v, or EMPTY if it hasn't been visited.
+         * Unlike neighbour() it doesn't need the adjacency to be rebuilt
+         * after the maze has grown
+         */
+        public int neighbourAt(int v, int k) {
+            return xytoi.get(itox[v] + DXN[k], itoy[v] + DYN[k]);
+        }
+
+        /* primitive (allocation-free) adjacency:
+         * for (int k = 0; k < g.degree(v); ++k) visit(g.neighbour(v, k));
+         */
+        public int degree(int v) {
+            buildAdjacency();
+            return adjStart[v+1] - adjStart[v];
+        }
+        public int neighbour(int v, int k) {
+            return adjList[adjStart[v] + k];
+        }
+
+        /* boxing wrapper around degree()/neighbour() */
         public Iterable<Integer> adj(int v) {
             return new Iterable<Integer>() {
                 public Iterator<Integer> iterator() {
@@ -212,37 +610,20 @@ public class MazeWalker {
         private static class MazeAdjacentVerticesIterator
                 implements Iterator<Integer> {
                 Maze maze;
-                int k, x0, y0;
-                private static final int[] dx = {
-                    -1, 1, 0, 0
-                };
-                private static final int[] dy = {
-                    0, 0, -1, 1
-                };
+                int v, k, deg;
                 public MazeAdjacentVerticesIterator(Maze maze, int v) {
                     this.maze = maze;
+                    this.v = v;
                     this.k = 0;
-                    this.x0 = maze.itox(v);
-                    this.y0 = maze.itoy(v);
+                    this.deg = maze.degree(v);
                 }
                 public boolean hasNext() {
-                    int k0 = this.k;
-                    if (next() == null)
-                        return false;
-                    this.k = k0;
-                    return true;
+                    return k < deg;
                 }
                 public Integer next() {
-                    int x, y, w;
-                    while (k < 4) {
-                        x = x0 + dx[k];
-                        y = y0 + dy[k];
-                        w = maze.xytoi(x, y);
-                        k += 1;
-                        if (w != EMPTY)
-                            return w;
-                    }
-                    return null;
+                    if (!hasNext())
+                        throw new NoSuchElementException();
+                    return maze.neighbour(v, k++);
                 }
         }
     }
@@ -251,30 +632,44 @@ public class MazeWalker {
     {
         int[] height;
         int[] prev;
-        public Paths(Maze g, int orig) {
+        /* empty tree, to be grown by a subclass */
+        Paths(Maze g) {
             height = new int[g.n()];
             prev = new int[g.n()];
-            for (int i = 0; i < g.n(); ++i) {
-                height[i] = INFTY;
-                prev[i] = EMPTY;
-            }
+            Arrays.fill(height, g.infty());
+            Arrays.fill(prev, EMPTY);
+        }
+        public Paths(Maze g, int orig) {
+            this(g);
+            PathsEvent event = JFR ? new PathsEvent() : null;
+            int infty = g.infty();
             height[orig] = 0;
 
-            Queue<Integer> q = new LinkedList<Integer>();
-            q.add(orig);
-            while(q.size() != 0)
+            /* every vertex is enqueued at most once,
+             * so a plain array is enough for the queue */
+            int[] q = new int[g.n()];
+            int head = 0, tail = 0;
+            int highWater = 0;
+            q[tail++] = orig;
+            while (head != tail)
             {
-                int v = q.poll();
+                int v = q[head++];
                 int newh = 1 + height[v];
-                for (int w: g.adj(v)) {
+                int deg = g.degree(v);
+                for (int k = 0; k < deg; ++k) {
+                    int w = g.neighbour(v, k);
                     if (height[w] > newh) {
-                        if (height[w] == INFTY)
-                            q.add(w);
+                        if (height[w] == infty)
+                            q[tail++] = w;
                         height[w] = newh;
                         prev[w] = v;
                     }
                 }
+                if (tail - head > highWater)
+                    highWater = tail - head;
             }
+            if (event != null)
+                event.report(false, head, highWater);
         }
         int distTo(int w) {
             return height[w];
@@ -282,40 +677,1317 @@ public class MazeWalker {
         int prev(int w) {
             return prev[w];
         }
+        /* vertices of a shortest path from the origin to w, both inclusive */
+        int[] pathTo(int w) {
+            int[] route = new int[height[w] + 1];
+            for (int i = height[w]; i >= 0; --i) {
+                route[i] = w;
+                w = prev[w];
+            }
+            return route;
+        }
     }
 
-    public static void main(String[] args) throws Exception {
-        /* BufferedReader r = new BufferedReader(new InputStreamReader(System.in)); */
-        /* original path --- a line comprised of characters 'L','R','U','D' */
-        String iniPat = args[0]; /*  r.readLine(); */
-        /* visible (out of fog-of-war) part of the maze */
-        /* with vertices enumerated and mapped to a plane */
-        Maze maze = new Maze(iniPat);
-
-        int io = 0;
-        int x = maze.destinationX();
-        int y = maze.destinationY();
-        int id = maze.xytoi(x, y);
-        Paths p = new Paths(maze, io);
-        int optLen = p.distTo(id);
-        char[] optPat = new char[optLen];
+    /* Flight recorder events, committed (if recording) once per maze or BFS tree;
+     * with -Dvsu.jfr=true only (see README)
+     */
+    static final boolean JFR = Boolean.getBoolean("vsu.jfr");
+
+    @Name("vsu.MazeBuild")
+    @Label("Maze Construction")
+    @Category({ "VSU", "MazeWalker" })
+    static class MazeBuildEvent extends Event {
+        @Label("Moves")
+        long moves;
+        @Label("Cells")
+        int cells;
+        @Label("Insert Probes")
+        long probes;
+        @Label("Tiled")
+        boolean tiled;
+
+        MazeBuildEvent() {
+            begin();
+        }
+
+        void report(Maze maze, long moves) {
+            end();
+            if (!shouldCommit())
+                return;
+            this.moves = moves;
+            this.cells = maze.n;
+            this.probes = maze.xytoi.probes();
+            this.tiled = maze.tiled();
+            commit();
+        }
+    }
+
+    @Name("vsu.Paths")
+    @Label("BFS Tree")
+    @Category({ "VSU", "MazeWalker" })
+    static class PathsEvent extends Event {
+        @Label("Parallel")
+        boolean parallel;
+        @Label("Vertices Expanded")
+        int expanded;
+        @Label("Queue High-Water Mark")
+        @Description("The most vertices enqueued at once (the largest level, in parallel BFS)")
+        int highWater;
+
+        PathsEvent() {
+            begin();
+        }
+
+        void report(boolean parallel, int expanded, int highWater) {
+            end();
+            if (!shouldCommit())
+                return;
+            this.parallel = parallel;
+            this.expanded = expanded;
+            this.highWater = highWater;
+            commit();
+        }
+    }
+
+    /* Level-synchronous BFS on a fork-join pool, with the same tree as Paths.
+     *
+     * Sequential BFS makes w a child of the first vertex of the previous level
+     * (in queue order) adjacent to it. So the queue itself is reproduced:
+     * rank[v] is the position of v in the queue, the parent of a new vertex
+     * is its frontier neighbour of the least rank, and the next level is laid out
+     * by a prefix sum over the children counts of the (ordered) frontier.
+     * Parents are found either top-down (frontier vertices race for their
+     * neighbours with an atomic min on the rank) or bottom-up (every unvisited
+     * vertex, found via the visited bitmap, scans its own neighbours);
+     * the direction is switched with Beamer's heuristic.
+     * Levels too small to be worth forking are expanded sequentially
+     */
+    public static class ParallelPaths extends Paths
+    {
+        /* smaller frontiers are expanded sequentially */
+        private static final int GRAIN = 1 << 10;
+        /* vertices (or bitmap words) handled by a single task */
+        private static final int CHUNK = 1 << 9;
+        /* direction-optimizing thresholds, see Beamer et al. */
+        private static final int ALPHA = 14;
+        private static final int BETA = 24;
+        private static final int NO_RANK = Integer.MAX_VALUE;
+
+        private Maze g;
+        private int n;
+        private int infty;
+        private int[] queue;
+        private int[] rank;
+        private AtomicIntegerArray parentRank;
+        private AtomicLongArray visited;
+        private ForkJoinPool pool;
+
+        public ParallelPaths(Maze g, int orig) {
+            this(g, orig, ForkJoinPool.commonPool());
+        }
+
+        public ParallelPaths(Maze g, int orig, ForkJoinPool pool) {
+            super(g);
+            this.g = g;
+            this.pool = pool;
+            this.n = g.n();
+            this.infty = g.infty();
+            PathsEvent event = JFR ? new PathsEvent() : null;
+            queue = new int[n];
+            rank = new int[n];
+            parentRank = new AtomicIntegerArray(n);
+            visited = new AtomicLongArray((n + 63) >>> 6);
+            for (int i = 0; i < n; ++i)
+                parentRank.set(i, NO_RANK);
+
+            /* edges still to be checked bottom-up, and out of the frontier */
+            long mu = 0;
+            for (int v = 0; v < n; ++v)
+                mu += g.degree(v);
+            long mf = g.degree(orig);
+            mu -= mf;
+
+            height[orig] = 0;
+            queue[0] = orig;
+            rank[orig] = 0;
+            mark(orig);
+            int head = 0, tail = 1;
+            int lastFrontier = 0;
+            int highWater = 0;
+            boolean bottomUp = false;
+            for (int level = 0; head != tail; ++level) {
+                int frontier = tail - head;
+                if (frontier > highWater)
+                    highWater = frontier;
+                if (!bottomUp && frontier > lastFrontier && mf > mu / ALPHA)
+                    bottomUp = true;
+                else if (bottomUp && frontier < lastFrontier && frontier < n / BETA)
+                    bottomUp = false;
+                lastFrontier = frontier;
+
+                long next;
+                if (frontier < GRAIN && !bottomUp) {
+                    next = expandSequentially(head, tail, level);
+                } else {
+                    if (bottomUp)
+                        findParentsBottomUp(level);
+                    else
+                        findParentsTopDown(head, tail);
+                    next = layOutLevel(head, tail, level);
+                }
+                /* next = (number of new vertices) << 32 | (sum of their degrees) */
+                head = tail;
+                tail += (int) (next >>> 32);
+                mf = next & 0xFFFFFFFFL;
+                mu -= mf;
+            }
+            if (event != null)
+                event.report(true, tail, highWater);
+        }
+
+        private void mark(int v) {
+            long bit = 1L << v;
+            int i = v >>> 6;
+            long old;
+            while (((old = visited.get(i)) & bit) == 0
+                    && !visited.compareAndSet(i, old, old | bit));
+        }
+
+        /* plain sequential BFS step, as in Paths */
+        private long expandSequentially(int head, int tail, int level) {
+            int t = tail;
+            long degrees = 0;
+            for (int i = head; i < tail; ++i) {
+                int v = queue[i];
+                int deg = g.degree(v);
+                for (int k = 0; k < deg; ++k) {
+                    int w = g.neighbour(v, k);
+                    if (height[w] == infty) {
+                        height[w] = level + 1;
+                        prev[w] = v;
+                        rank[w] = t;
+                        queue[t++] = w;
+                        /* no other thread is running, so no need to CAS */
+                        visited.set(w >>> 6, visited.get(w >>> 6) | (1L << w));
+                        degrees += g.degree(w);
+                    }
+                }
+            }
+            return ((long) (t - tail) << 32) | degrees;
+        }
+
+        private void findParentsTopDown(int head, int tail) {
+            parallelFor(head, tail, CHUNK, (lo, hi) -> {
+                for (int i = lo; i < hi; ++i) {
+                    int v = queue[i];
+                    int r = rank[v];
+                    int deg = g.degree(v);
+                    for (int k = 0; k < deg; ++k) {
+                        int w = g.neighbour(v, k);
+                        if (height[w] != infty)
+                            continue;
+                        int cur;
+                        while ((cur = parentRank.get(w)) > r
+                                && !parentRank.compareAndSet(w, cur, r));
+                    }
+                }
+            });
+        }
+
+        private void findParentsBottomUp(int level) {
+            parallelFor(0, visited.length(), CHUNK >>> 6, (lo, hi) -> {
+                for (int i = lo; i < hi; ++i) {
+                    long unvisited = ~visited.get(i);
+                    while (unvisited != 0) {
+                        int w = (i << 6) + Long.numberOfTrailingZeros(unvisited);
+                        unvisited &= unvisited - 1;
+                        if (w >= n)
+                            break;
+                        int best = NO_RANK;
+                        int deg = g.degree(w);
+                        for (int k = 0; k < deg; ++k) {
+                            int v = g.neighbour(w, k);
+                            if (height[v] == level && rank[v] < best)
+                                best = rank[v];
+                        }
+                        if (best != NO_RANK)
+                            parentRank.set(w, best);
+                    }
+                }
+            });
+        }
+
+        /* appends the children of the frontier to the queue, in sequential BFS order */
+        private long layOutLevel(int head, int tail, int level) {
+            int chunks = (tail - head + CHUNK - 1) / CHUNK;
+            int[] offset = new int[chunks + 1];
+            long[] degrees = new long[chunks];
+            parallelFor(0, chunks, 1, (lo, hi) -> {
+                for (int c = lo; c < hi; ++c) {
+                    int count = 0;
+                    for (int i = head + c*CHUNK; i < Math.min(tail, head + (c+1)*CHUNK); ++i) {
+                        int v = queue[i];
+                        int deg = g.degree(v);
+                        for (int k = 0; k < deg; ++k)
+                            if (parentRank.get(g.neighbour(v, k)) == rank[v])
+                                ++count;
+                    }
+                    offset[c + 1] = count;
+                }
+            });
+            for (int c = 0; c < chunks; ++c)
+                offset[c + 1] += offset[c];
+            parallelFor(0, chunks, 1, (lo, hi) -> {
+                for (int c = lo; c < hi; ++c) {
+                    int t = tail + offset[c];
+                    long sum = 0;
+                    for (int i = head + c*CHUNK; i < Math.min(tail, head + (c+1)*CHUNK); ++i) {
+                        int v = queue[i];
+                        int deg = g.degree(v);
+                        for (int k = 0; k < deg; ++k) {
+                            int w = g.neighbour(v, k);
+                            if (parentRank.get(w) != rank[v])
+                                continue;
+                            height[w] = level + 1;
+                            prev[w] = v;
+                            rank[w] = t;
+                            queue[t++] = w;
+                            mark(w);
+                            sum += g.degree(w);
+                        }
+                    }
+                    degrees[c] = sum;
+                }
+            });
+            long sum = 0;
+            for (int c = 0; c < chunks; ++c)
+                sum += degrees[c];
+            return ((long) offset[chunks] << 32) | sum;
+        }
+
+        private interface RangeBody {
+            void run(int lo, int hi);
+        }
+
+        /* runs body over [lo, hi) split into pieces of at most grain */
+        private void parallelFor(int lo, int hi, int grain, RangeBody body) {
+            pool.invoke(new RangeTask(lo, hi, grain, body));
+        }
+
+        private static class RangeTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private int lo, hi, grain;
+            private RangeBody body;
+            RangeTask(int lo, int hi, int grain, RangeBody body) {
+                this.lo = lo;
+                this.hi = hi;
+                this.grain = grain;
+                this.body = body;
+            }
+            @Override
+            protected void compute() {
+                if (hi - lo <= grain) {
+                    body.run(lo, hi);
+                    return;
+                }
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new RangeTask(lo, mid, grain, body),
+                        new RangeTask(mid, hi, grain, body));
+            }
+        }
+    }
+
+    /* Shortest paths from the origin, kept up to date while the walk goes on.
+     * A revisit changes nothing. A new cell gets 1 + the least height of its
+     * neighbours, and then may serve as a shortcut for them: heights can only
+     * decrease, so the repair is a BFS from the new cell that stops at cells
+     * which don't get any closer. Thus a move costs O(number of cells whose
+     * height has changed)
+     */
+    public static class LivePaths
+    {
+        private Maze maze;
+        private int[] height;
+        private int[] prev;
+        /* queue of the repair, reused between moves */
+        private int[] q;
+
+        public LivePaths() {
+            this(new Maze());
+        }
+
+        public LivePaths(Maze maze) {
+            this.maze = maze;
+            Paths p = new Paths(maze, maze.originSerial());
+            this.height = Arrays.copyOf(p.height, Math.max(16, maze.n()));
+            this.prev = Arrays.copyOf(p.prev, height.length);
+            this.q = new int[height.length];
+        }
+
+        /* moves the walker and returns the serial of the cell reached */
+        public int move(int mov) {
+            int n = maze.n();
+            int u = maze.move(mov);
+            if (maze.n() == n)
+                return u;
+            if (u == height.length) {
+                height = Arrays.copyOf(height, 2*u);
+                prev = Arrays.copyOf(prev, 2*u);
+                q = new int[2*u];
+            }
+            height[u] = Integer.MAX_VALUE;
+            for (int k = 0; k < MAX_DEG; ++k) {
+                int w = maze.neighbourAt(u, k);
+                if (w != EMPTY && height[w] + 1 < height[u]) {
+                    height[u] = height[w] + 1;
+                    prev[u] = w;
+                }
+            }
+            int head = 0, tail = 0;
+            q[tail++] = u;
+            while (head != tail) {
+                int v = q[head++];
+                int newh = height[v] + 1;
+                for (int k = 0; k < MAX_DEG; ++k) {
+                    int w = maze.neighbourAt(v, k);
+                    if (w != EMPTY && height[w] > newh) {
+                        height[w] = newh;
+                        prev[w] = v;
+                        q[tail++] = w;
+                    }
+                }
+            }
+            return u;
+        }
+
+        public Maze maze() {
+            return maze;
+        }
+        int distTo(int w) {
+            return height[w];
+        }
+        int prev(int w) {
+            return prev[w];
+        }
+        /* vertices of a shortest path from the origin to w, both inclusive */
+        int[] pathTo(int w) {
+            int[] route = new int[height[w] + 1];
+            for (int i = height[w]; i >= 0; --i) {
+                route[i] = w;
+                w = prev[w];
+            }
+            return route;
+        }
+        /* the optimal route to the current position of the walker */
+        public String route() {
+            return moves(maze, pathTo(maze.destinationSerial()));
+        }
+    }
+
+    /* Distance and route queries between arbitrary cells of a built maze.
+     * BFS trees are cached per source in a bounded LRU; since the maze is undirected
+     * a tree rooted at either end of a query will do.
+     * The cache may be shared by several threads: a tree missing from the cache
+     * is built once, whoever else is waiting for it
+     */
+    public static class QueryService
+    {
+        private Maze maze;
+        private LinkedHashMap<Integer, CompletableFuture<Paths>> cache;
+        private AtomicLong hits = new AtomicLong();
+        private AtomicLong misses = new AtomicLong();
+
+        public QueryService(Maze maze, int capacity) {
+            this.maze = maze;
+            this.cache = new LinkedHashMap<Integer, CompletableFuture<Paths>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, CompletableFuture<Paths>> e) {
+                    return size() > capacity;
+                }
+            };
+            /* the adjacency is built lazily, do it before any worker reads it */
+            if (maze.n() > 0)
+                maze.degree(0);
+        }
+
+        public int distance(int a, int b) {
+            check(a);
+            check(b);
+            Paths p = cached(b);
+            if (p != null)
+                return p.distTo(a);
+            return tree(a).distTo(b);
+        }
+
+        /* vertices of a shortest path from a to b, both inclusive */
+        public int[] route(int a, int b) {
+            check(a);
+            check(b);
+            Paths p = cached(b);
+            if (p == null)
+                return tree(a).pathTo(b);
+            int[] route = p.pathTo(a);
+            for (int i = 0, j = route.length - 1; i < j; ++i, --j) {
+                int t = route[i]; route[i] = route[j]; route[j] = t;
+            }
+            return route;
+        }
+
+        private void check(int v) {
+            if (v < 0 || v >= maze.n())
+                throw new IllegalArgumentException("no such vertex: " + v);
+        }
+
+        /* the tree rooted at v if it is cached (or being built), null otherwise */
+        private Paths cached(int v) {
+            CompletableFuture<Paths> f;
+            synchronized (cache) {
+                f = cache.get(v);
+            }
+            if (f == null)
+                return null;
+            hits.incrementAndGet();
+            return f.join();
+        }
+
+        /* the tree rooted at v, built if necessary */
+        private Paths tree(int v) {
+            CompletableFuture<Paths> f;
+            boolean mine = false;
+            synchronized (cache) {
+                f = cache.get(v);
+                if (f == null) {
+                    f = new CompletableFuture<Paths>();
+                    cache.put(v, f);
+                    mine = true;
+                }
+            }
+            if (!mine) {
+                hits.incrementAndGet();
+                return f.join();
+            }
+            misses.incrementAndGet();
+            try {
+                f.complete(new Paths(maze, v));
+            } catch (RuntimeException e) {
+                f.completeExceptionally(e);
+                synchronized (cache) {
+                    cache.remove(v, f);
+                }
+                throw e;
+            }
+            return f.join();
+        }
+
+        public long hits() {
+            return hits.get();
+        }
+        public long misses() {
+            return misses.get();
+        }
+
+        /* Answers queries read from `in`, one per line: "a b" (vertex serials).
+         * For each of them a line "distance moves" is printed, in the order of input,
+         * or "error: ..." if the line isn't such a query.
+         * Queries are answered by the pool, a block at a time
+         */
+        public void batch(BufferedReader in, PrintWriter out, ExecutorService pool)
+                throws IOException, InterruptedException, ExecutionException {
+            List<Future<String>> block = new ArrayList<Future<String>>(BATCH_BLOCK);
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+                block.add(query(line, pool));
+                if (block.size() == BATCH_BLOCK)
+                    flush(block, out);
+            }
+            flush(block, out);
+            out.flush();
+        }
+
+        private static final int BATCH_BLOCK = 1 << 12;
+
+        /* the answer to a line of batch(), an error if it isn't a query */
+        private Future<String> query(String line, ExecutorService pool) {
+            String[] ab = line.split("\\s+");
+            int a, b;
+            try {
+                if (ab.length != 2)
+                    throw new NumberFormatException();
+                a = Integer.parseInt(ab[0]);
+                b = Integer.parseInt(ab[1]);
+                check(a);
+                check(b);
+            } catch (NumberFormatException e) {
+                return CompletableFuture.completedFuture("error: not a query: " + line);
+            } catch (IllegalArgumentException e) {
+                return CompletableFuture.completedFuture("error: " + e.getMessage());
+            }
+            return pool.submit(() -> {
+                int[] route = route(a, b);
+                return (route.length - 1) + " " + moves(maze, route);
+            });
+        }
+
+        private static void flush(List<Future<String>> block, PrintWriter out)
+                throws InterruptedException, ExecutionException {
+            for (Future<String> f: block)
+                out.println(f.get());
+            block.clear();
+        }
+    }
+
+    /* Binary snapshot of a built Maze (and, optionally, of the BFS tree from its origin).
+     * Layout, all little-endian:
+     *   header    MAGIC, VERSION, n, xmin, ymin, x, y, u, capacity, flags (padded to HEADER bytes)
+     *   keys      long[capacity]  \ the coordinate index
+     *   vals      int[capacity]   /
+     *   itox      int[n]
+     *   itoy      int[n]
+     *   height    int[n]          \ if flags & HAS_PATHS
+     *   prev      int[n]          /
+     * Every section is mapped on its own, so the file is queried in place,
+     * without being read or parsed; maze() copies it back into a Maze
+     * for the engines that need one
+     */
+    public static class MazeSnapshot implements Plane
+    {
+        private static final int MAGIC = 0x455A414D; /* "MAZE" */
+        private static final int VERSION = 1;
+        private static final int HEADER = 64;
+        private static final int HAS_PATHS = 1;
+
+        private int n, xmin, ymin, x, y, u, mask;
+        private boolean hasPaths;
+        private LongBuffer keys;
+        private IntBuffer vals;
+        private IntBuffer itox, itoy;
+        private IntBuffer height, prev;
+
+        public MazeSnapshot(FileChannel ch) throws IOException {
+            ByteBuffer h = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER)
+                .order(ByteOrder.LITTLE_ENDIAN);
+            if (h.getInt() != MAGIC || h.getInt() != VERSION)
+                throw new IOException("not a maze snapshot");
+            n = h.getInt();
+            xmin = h.getInt();
+            ymin = h.getInt();
+            x = h.getInt();
+            y = h.getInt();
+            u = h.getInt();
+            int cap = h.getInt();
+            hasPaths = (h.getInt() & HAS_PATHS) != 0;
+            mask = cap - 1;
+
+            long pos = HEADER;
+            keys = map(ch, pos, 8L*cap).asLongBuffer();
+            pos += 8L*cap;
+            vals = map(ch, pos, 4L*cap).asIntBuffer();
+            pos += 4L*cap;
+            itox = map(ch, pos, 4L*n).asIntBuffer();
+            pos += 4L*n;
+            itoy = map(ch, pos, 4L*n).asIntBuffer();
+            pos += 4L*n;
+            if (hasPaths) {
+                height = map(ch, pos, 4L*n).asIntBuffer();
+                pos += 4L*n;
+                prev = map(ch, pos, 4L*n).asIntBuffer();
+            }
+        }
+
+        private static ByteBuffer map(FileChannel ch, long pos, long len) throws IOException {
+            return ch.map(FileChannel.MapMode.READ_ONLY, pos, len).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /* paths may be null; otherwise it must be rooted at the origin of the maze */
+        public static void write(Maze maze, Paths paths, FileChannel ch) throws IOException {
+            int n = maze.n();
+            CoordinateIndex index;
+            if (maze.xytoi instanceof CoordinateIndex) {
+                index = (CoordinateIndex) maze.xytoi;
+            } else {
+                /* the format has the hash table */
+                index = new CoordinateIndex(n);
+                for (int i = 0; i < n; ++i)
+                    index.put(maze.itox[i], maze.itoy[i], i);
+            }
+            int cap = index.vals.length;
+            ByteBuffer h = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            h.putInt(MAGIC).putInt(VERSION).putInt(n)
+                .putInt(maze.xmin).putInt(maze.ymin)
+                .putInt(maze.x).putInt(maze.y).putInt(maze.u)
+                .putInt(cap).putInt(paths != null ? HAS_PATHS : 0);
+            h.clear();
+            ch.truncate(0);
+            ch.write(h, 0);
+
+            long pos = HEADER;
+            pos = put(ch, pos, index.keys, cap);
+            pos = put(ch, pos, index.vals, cap);
+            pos = put(ch, pos, maze.itox, n);
+            pos = put(ch, pos, maze.itoy, n);
+            if (paths != null) {
+                pos = put(ch, pos, paths.height, n);
+                pos = put(ch, pos, paths.prev, n);
+            }
+        }
+
+        private static long put(FileChannel ch, long pos, long[] a, int len) throws IOException {
+            ch.map(FileChannel.MapMode.READ_WRITE, pos, 8L*len).order(ByteOrder.LITTLE_ENDIAN)
+                .asLongBuffer().put(a, 0, len);
+            return pos + 8L*len;
+        }
+
+        private static long put(FileChannel ch, long pos, int[] a, int len) throws IOException {
+            ch.map(FileChannel.MapMode.READ_WRITE, pos, 4L*len).order(ByteOrder.LITTLE_ENDIAN)
+                .asIntBuffer().put(a, 0, len);
+            return pos + 4L*len;
+        }
+
+        /* heap copy of the maze: bulk copies only, nothing is rehashed */
+        public Maze maze() {
+            int[] ix = new int[n];
+            int[] iy = new int[n];
+            long[] k = new long[mask + 1];
+            int[] v = new int[mask + 1];
+            itox.get(0, ix);
+            itoy.get(0, iy);
+            keys.get(0, k);
+            vals.get(0, v);
+            return new Maze(new CoordinateIndex(k, v, n), ix, iy, n, xmin, ymin, x, y, u);
+        }
+
+        /* the same queries as on a Maze, answered from the mapped file */
+        public int xytoi(int x, int y) {
+            long key = CoordinateIndex.pack(x + xmin, y + ymin);
+            int h = CoordinateIndex.hash(key) & mask;
+            int v;
+            while ((v = vals.get(h)) != EMPTY) {
+                if (keys.get(h) == key)
+                    return v;
+                h = (h + 1) & mask;
+            }
+            return EMPTY;
+        }
+        public int itox(int i) {
+            return itox.get(i) - xmin;
+        }
+        public int itoy(int i) {
+            return itoy.get(i) - ymin;
+        }
+        public int originSerial() {
+            return 0;
+        }
+        public int destinationSerial() {
+            return u;
+        }
+        public int n() {
+            return n;
+        }
+
+        /* the BFS tree from the origin, if it has been saved */
+        public boolean hasPaths() {
+            return hasPaths;
+        }
+        public int distTo(int w) {
+            return height.get(w);
+        }
+        public int prev(int w) {
+            return prev.get(w);
+        }
+        /* vertices of a shortest path from the origin to w, both inclusive */
+        public int[] pathTo(int w) {
+            int[] route = new int[height.get(w) + 1];
+            for (int i = route.length - 1; i >= 0; --i) {
+                route[i] = w;
+                w = prev.get(w);
+            }
+            return route;
+        }
+    }
+
+    /* Point-to-point A* search.
+     * The heuristic is the Manhattan distance on the plane, which is consistent,
+     * so with unit edges f = g + h of a successor is either f or f+2:
+     * the open set is just two stacks, the current f-bucket and the next one.
+     * Search stops as soon as the target is popped
+     */
+    public static class AStarPath
+    {
+        private int[] g;
+        private int[] prev;
+        private int orig, dest;
+        private int expanded;
+
+        public AStarPath(Maze maze, int orig, int dest) {
+            this.orig = orig;
+            this.dest = dest;
+            int infty = maze.infty();
+            int n = maze.n();
+            g = new int[n];
+            prev = new int[n];
+            boolean[] closed = new boolean[n];
+            Arrays.fill(g, infty);
+            Arrays.fill(prev, EMPTY);
+            int xd = maze.itox(dest);
+            int yd = maze.itoy(dest);
+
+            IntStack cur = new IntStack();
+            IntStack nxt = new IntStack();
+            g[orig] = 0;
+            int f = manhattan(maze, orig, xd, yd);
+            cur.push(orig);
+            while (!cur.isEmpty() || !nxt.isEmpty()) {
+                if (cur.isEmpty()) {
+                    IntStack t = cur; cur = nxt; nxt = t;
+                    f += 2;
+                }
+                int v = cur.pop();
+                /* stale entry: v has been reached cheaper since it was pushed */
+                if (closed[v] || g[v] + manhattan(maze, v, xd, yd) != f)
+                    continue;
+                closed[v] = true;
+                ++expanded;
+                if (v == dest)
+                    break;
+                int newg = g[v] + 1;
+                int deg = maze.degree(v);
+                for (int k = 0; k < deg; ++k) {
+                    int w = maze.neighbour(v, k);
+                    if (newg < g[w]) {
+                        g[w] = newg;
+                        prev[w] = v;
+                        if (newg + manhattan(maze, w, xd, yd) == f)
+                            cur.push(w);
+                        else
+                            nxt.push(w);
+                    }
+                }
+            }
+        }
+
+        private static int manhattan(Maze maze, int v, int xd, int yd) {
+            return Math.abs(maze.itox(v) - xd) + Math.abs(maze.itoy(v) - yd);
+        }
+
+        public int distance() {
+            return g[dest];
+        }
+        /* vertices of a shortest path from orig to dest, both inclusive */
+        public int[] route() {
+            int[] route = new int[g[dest] + 1];
+            int w = dest;
+            for (int i = g[dest]; i >= 0; --i) {
+                route[i] = w;
+                w = prev[w];
+            }
+            return route;
+        }
+        /* number of vertices settled */
+        public int expanded() {
+            return expanded;
+        }
+    }
+
+    /* Point-to-point bidirectional BFS.
+     * Level by level, the side with the smaller frontier is expanded;
+     * once some edge of a level joins the two search trees,
+     * the level is finished and the best junction found is the answer
+     */
+    public static class BidirectionalPath
+    {
+        private int[] distS, distT;
+        private int[] prevS, prevT;
+        private int dist;
+        /* the shortest path goes ... -> meetS -> meetT -> ... */
+        private int meetS, meetT;
+        private int expanded;
+
+        public BidirectionalPath(Maze maze, int orig, int dest) {
+            int infty = maze.infty();
+            int n = maze.n();
+            distS = new int[n];
+            distT = new int[n];
+            prevS = new int[n];
+            prevT = new int[n];
+            Arrays.fill(distS, infty);
+            Arrays.fill(distT, infty);
+            Arrays.fill(prevS, EMPTY);
+            Arrays.fill(prevT, EMPTY);
+            this.dist = infty;
+
+            distS[orig] = 0;
+            distT[dest] = 0;
+            if (orig == dest) {
+                dist = 0;
+                meetS = orig;
+                meetT = EMPTY;
+                return;
+            }
+            /* each vertex enters each of the queues at most once */
+            int[] qS = new int[n];
+            int[] qT = new int[n];
+            int headS = 0, tailS = 0, headT = 0, tailT = 0;
+            qS[tailS++] = orig;
+            qT[tailT++] = dest;
+            while (headS != tailS && headT != tailT && dist == infty) {
+                boolean forward = tailS - headS <= tailT - headT;
+                int[] q = forward ? qS : qT;
+                int[] d = forward ? distS : distT;
+                int[] p = forward ? prevS : prevT;
+                int[] other = forward ? distT : distS;
+                int head = forward ? headS : headT;
+                int tail = forward ? tailS : tailT;
+                int levelEnd = tail;
+                while (head != levelEnd) {
+                    int v = q[head++];
+                    ++expanded;
+                    int deg = maze.degree(v);
+                    for (int k = 0; k < deg; ++k) {
+                        int w = maze.neighbour(v, k);
+                        if (other[w] != infty && d[v] + 1 + other[w] < dist) {
+                            dist = d[v] + 1 + other[w];
+                            meetS = forward ? v : w;
+                            meetT = forward ? w : v;
+                        }
+                        if (d[w] == infty) {
+                            d[w] = d[v] + 1;
+                            p[w] = v;
+                            q[tail++] = w;
+                        }
+                    }
+                }
+                if (forward) {
+                    headS = head; tailS = tail;
+                } else {
+                    headT = head; tailT = tail;
+                }
+            }
+        }
+
+        public int distance() {
+            return dist;
+        }
+        /* vertices of a shortest path from orig to dest, both inclusive */
+        public int[] route() {
+            int[] route = new int[dist + 1];
+            int i = distS[meetS];
+            for (int w = meetS; w != EMPTY; w = prevS[w])
+                route[i--] = w;
+            i = distS[meetS] + 1;
+            for (int w = meetT; w != EMPTY; w = prevT[w])
+                route[i++] = w;
+            return route;
+        }
+        /* number of vertices whose neighbours have been scanned */
+        public int expanded() {
+            return expanded;
+        }
+    }
+
+    /* Maze with its corridors (chains of degree-2 cells) collapsed into weighted edges.
+     * Nodes are the junctions and dead ends (degree != 2), the origin and the destination.
+     * Every edge remembers the first cell of its corridor,
+     * so that the corridor can be walked again when the route is printed
+     */
+    public static class ContractedMaze
+    {
+        private Maze maze;
+        /* vertex to node and back; nodeOf[v] == EMPTY for corridor cells */
+        private int[] nodeOf;
+        private int[] vertexOf;
+        private int nodes;
+        private int orig, dest;
+        /* compressed adjacency: edges of node u are edgeStart[u] .. edgeStart[u+1]-1 */
+        private int[] edgeStart;
+        private int[] edgeTo;
+        private int[] edgeFirst;
+        private int[] edgeWeight;
+        private int maxWeight;
+
+        public ContractedMaze(Maze maze, int orig, int dest) {
+            this.maze = maze;
+            this.orig = orig;
+            this.dest = dest;
+            int n = maze.n();
+            nodeOf = new int[n];
+            int[] vs = new int[n];
+            int edges = 0;
+            for (int v = 0; v < n; ++v) {
+                if (maze.degree(v) != 2 || v == orig || v == dest) {
+                    vs[nodes] = v;
+                    nodeOf[v] = nodes++;
+                    edges += maze.degree(v);
+                } else {
+                    nodeOf[v] = EMPTY;
+                }
+            }
+            vertexOf = Arrays.copyOf(vs, nodes);
+
+            edgeStart = new int[nodes + 1];
+            edgeTo = new int[edges];
+            edgeFirst = new int[edges];
+            edgeWeight = new int[edges];
+            int e = 0;
+            for (int u = 0; u < nodes; ++u) {
+                edgeStart[u] = e;
+                int v = vertexOf[u];
+                int deg = maze.degree(v);
+                for (int k = 0; k < deg; ++k) {
+                    int first = maze.neighbour(v, k);
+                    int prev = v;
+                    int w = first;
+                    int len = 1;
+                    while (nodeOf[w] == EMPTY) {
+                        int next = maze.neighbour(w, 0);
+                        if (next == prev)
+                            next = maze.neighbour(w, 1);
+                        prev = w;
+                        w = next;
+                        ++len;
+                    }
+                    /* a corridor leading back to where it started is useless */
+                    if (w == v)
+                        continue;
+                    edgeTo[e] = nodeOf[w];
+                    edgeFirst[e] = first;
+                    edgeWeight[e] = len;
+                    if (len > maxWeight)
+                        maxWeight = len;
+                    ++e;
+                }
+            }
+            edgeStart[nodes] = e;
+        }
+
+        /* number of nodes left after contraction */
+        public int nodes() {
+            return nodes;
+        }
+        public int edges() {
+            return edgeStart[nodes];
+        }
+        public int originNode() {
+            return nodeOf[orig];
+        }
+        public int destinationNode() {
+            return nodeOf[dest];
+        }
+
+        /* appends the cells of edge e (excluding the node it leaves) to route */
+        private int expand(int u, int e, int[] route, int i) {
+            int prev = vertexOf[u];
+            int w = edgeFirst[e];
+            route[i++] = w;
+            while (nodeOf[w] == EMPTY) {
+                int next = maze.neighbour(w, 0);
+                if (next == prev)
+                    next = maze.neighbour(w, 1);
+                prev = w;
+                w = next;
+                route[i++] = w;
+            }
+            return i;
+        }
+    }
+
+    /* Dijkstra over a ContractedMaze with a bucketed (Dial's) queue:
+     * weights are small integers, so there are only maxWeight+1 live buckets at a time.
+     * Stops as soon as the destination node is settled
+     */
+    public static class ContractedPath
+    {
+        private ContractedMaze g;
+        private int[] dist;
+        /* edge by which each node has been reached */
+        private int[] prevEdge;
+        private int[] prevNode;
+        private int expanded;
+
+        public ContractedPath(ContractedMaze g) {
+            this.g = g;
+            int infty = g.maze.infty();
+            dist = new int[g.nodes];
+            prevEdge = new int[g.nodes];
+            prevNode = new int[g.nodes];
+            boolean[] settled = new boolean[g.nodes];
+            Arrays.fill(dist, infty);
+            Arrays.fill(prevEdge, EMPTY);
+            Arrays.fill(prevNode, EMPTY);
+
+            int src = g.originNode();
+            int dst = g.destinationNode();
+            int nb = g.maxWeight + 1;
+            IntStack[] buckets = new IntStack[nb];
+            for (int i = 0; i < nb; ++i)
+                buckets[i] = new IntStack();
+            dist[src] = 0;
+            buckets[0].push(src);
+            int queued = 1;
+            for (int d = 0; queued > 0; ++d) {
+                IntStack b = buckets[d % nb];
+                while (!b.isEmpty()) {
+                    int u = b.pop();
+                    --queued;
+                    if (settled[u] || dist[u] != d)
+                        continue;
+                    settled[u] = true;
+                    ++expanded;
+                    if (u == dst)
+                        return;
+                    for (int e = g.edgeStart[u]; e < g.edgeStart[u+1]; ++e) {
+                        int w = g.edgeTo[e];
+                        int nd = d + g.edgeWeight[e];
+                        if (nd < dist[w]) {
+                            dist[w] = nd;
+                            prevEdge[w] = e;
+                            prevNode[w] = u;
+                            buckets[nd % nb].push(w);
+                            ++queued;
+                        }
+                    }
+                }
+            }
+        }
+
+        public int distance() {
+            return dist[g.destinationNode()];
+        }
+        /* vertices (of the original maze) of a shortest path
+         * from the origin to the destination, both inclusive */
+        public int[] route() {
+            int dst = g.destinationNode();
+            int[] route = new int[dist[dst] + 1];
+            /* collect the nodes on the way back, then expand corridors forwards */
+            IntStack path = new IntStack();
+            for (int u = dst; u != g.originNode(); u = prevNode[u])
+                path.push(u);
+            int i = 0;
+            int u = g.originNode();
+            route[i++] = g.vertexOf[u];
+            while (!path.isEmpty()) {
+                int w = path.pop();
+                i = g.expand(u, prevEdge[w], route, i);
+                u = w;
+            }
+            return route;
+        }
+        /* number of nodes settled */
+        public int expanded() {
+            return expanded;
+        }
+    }
+
+    /* growable stack of ints */
+    private static class IntStack
+    {
+        private int[] a = new int[16];
+        private int size;
+
+        public void push(int v) {
+            if (size == a.length)
+                a = Arrays.copyOf(a, 2*size);
+            a[size++] = v;
+        }
+        public int pop() {
+            return a[--size];
+        }
+        public boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    /* converts a sequence of adjacent vertices into a string of moves */
+    public static String moves(Plane maze, int[] route) {
         char[][] dtomov = {
             { '0', 'U', '0' },
             { 'L', '0', 'R' },
             { '0', 'D', '0' }
         };
-        int v = id;
-        for (int i = optLen - 1; i >= 0; --i) {
-            int pre = p.prev(v);
-            int xpre = maze.itox(pre);
-            int ypre = maze.itoy(pre);
-            char mov = dtomov[1-(y-ypre)][1+x-xpre];
-            optPat[i] = mov;
-            v = pre;
-            x = xpre;
-            y = ypre;
-
-        }
-        System.out.println(new String(optPat));
+        char[] pat = new char[route.length - 1];
+        for (int i = 1; i < route.length; ++i) {
+            int dx = maze.itox(route[i]) - maze.itox(route[i-1]);
+            int dy = maze.itoy(route[i]) - maze.itoy(route[i-1]);
+            pat[i-1] = dtomov[1-dy][1+dx];
+        }
+        return new String(pat);
+    }
+
+    /* times sequential and parallel BFS from the origin
+     * and checks that they build the same tree */
+    public static void compareBfs(Maze maze, int rounds, PrintStream out) {
+        int io = maze.originSerial();
+        long bestSeq = Long.MAX_VALUE, bestPar = Long.MAX_VALUE;
+        boolean same = true;
+        for (int r = 0; r < rounds; ++r) {
+            long t0 = System.nanoTime();
+            Paths seq = new Paths(maze, io);
+            long t1 = System.nanoTime();
+            Paths par = new ParallelPaths(maze, io);
+            long t2 = System.nanoTime();
+            bestSeq = Math.min(bestSeq, t1 - t0);
+            bestPar = Math.min(bestPar, t2 - t1);
+            same &= Arrays.equals(seq.prev, par.prev) && Arrays.equals(seq.height, par.height);
+        }
+        out.printf("vertices:   %d%n", maze.n());
+        out.printf("sequential: %.3f ms, %.1f Mvertices/s%n",
+                bestSeq / 1e6, maze.n() * 1e3 / bestSeq);
+        out.printf("parallel:   %.3f ms, %.1f Mvertices/s (%d threads)%n",
+                bestPar / 1e6, maze.n() * 1e3 / bestPar, ForkJoinPool.getCommonPoolParallelism());
+        out.printf("identical:  %b%n", same);
+    }
+
+    /* reads moves one by one and prints the optimal route after each of them */
+    public static void live(InputStream in, PrintStream out) throws IOException {
+        LivePaths paths = new LivePaths();
+        int mov;
+        while ((mov = in.read()) != -1) {
+            if (!Maze.isMove(mov))
+                continue;
+            paths.move(mov);
+            out.println(paths.route());
+        }
+        out.flush();
+    }
+
+    private static final List<String> MODES =
+        Arrays.asList("-a", "-b", "-c", "-p", "-l", "-q", "--bench");
+    /* the most BFS trees kept by -q; each takes 8n bytes, so there are fewer
+     * on large mazes, as many as fit in QUERY_HEAP of the heap
+     */
+    private static final int QUERY_CACHE = 64;
+    private static final double QUERY_HEAP = 0.5;
+
+    /* usage:
+     *  MazeWalker [MODE] RRLUUULLLD   the path is given inline
+     *  MazeWalker [MODE] -            the path is read from stdin
+     *  MazeWalker [MODE] -f FILE      the path is read from a (memory-mapped) file
+     * by default a full BFS tree is built from the origin;
+     * -a and -b run a point-to-point A* or bidirectional BFS instead,
+     * -c runs Dijkstra over the maze with its corridors contracted,
+     * -p builds the BFS tree in parallel,
+     * --bench compares sequential and parallel BFS instead of printing the path
+     *  MazeWalker -l                  moves are read from stdin one by one,
+     *                                 and the route is printed after each of them
+     *  MazeWalker -q PATH | -f FILE   queries "a b" (vertex serials) are read from stdin,
+     *                                 and "distance moves" is printed for each of them
+     * the maze may also be saved to, or taken from, a snapshot (see MazeSnapshot):
+     *  MazeWalker --save SNAP [MODE] PATH | - | -f FILE
+     *  MazeWalker [MODE] --load SNAP
+     * in the default mode the BFS tree is saved too, and is then used by --load as is
+     */
+    public static void main(String[] args) throws Exception {
+        run(args, System.in, System.out, System.err);
+    }
+
+    /* main, with its standard streams given */
+    public static void run(String[] args, InputStream in, OutputStream rawOut, PrintStream err)
+            throws Exception {
+        run(args, Path.of(""), in, rawOut, err);
+    }
+
+    /* the same, with file names taken relative to dir; dir == null refuses them */
+    public static void run(String[] args, Path dir, InputStream in, OutputStream rawOut,
+            PrintStream err) throws Exception {
+        PrintStream out = rawOut instanceof PrintStream
+            ? (PrintStream) rawOut : new PrintStream(rawOut);
+        try {
+            run(args, dir, in, out);
+        } finally {
+            out.flush();
+        }
+    }
+
+    private static Path file(Path dir, String name) {
+        if (dir == null)
+            throw new IllegalArgumentException("file arguments aren't allowed here: " + name);
+        return dir.resolve(name);
+    }
+
+    private static void run(String[] args, Path dir, InputStream in, PrintStream out)
+            throws Exception {
+        int a = 0;
+        String mode = "";
+        Path saveTo = null;
+        if (args.length > 1 && args[0].equals("--save")) {
+            saveTo = file(dir, args[1]);
+            a += 2;
+        }
+        if (args.length > a && MODES.contains(args[a]))
+            mode = args[a++];
+        if (mode.equals("-l")) {
+            live(new BufferedInputStream(in), out);
+            return;
+        }
+        /* original path --- a line comprised of characters 'L','R','U','D' */
+        /* visible (out of fog-of-war) part of the maze */
+        /* with vertices enumerated and mapped to a plane */
+        Maze maze;
+        if (args.length == a || args[a].equals("-")) {
+            maze = new Maze(in);
+        } else if (args[a].equals("--load")) {
+            try (FileChannel ch = FileChannel.open(file(dir, args[a+1]))) {
+                MazeSnapshot snap = new MazeSnapshot(ch);
+                if (mode.isEmpty() && snap.hasPaths()) {
+                    out.println(moves(snap, snap.pathTo(snap.destinationSerial())));
+                    return;
+                }
+                maze = snap.maze();
+            }
+        } else if (args[a].equals("-f")) {
+            try (FileChannel ch = FileChannel.open(file(dir, args[a+1]))) {
+                maze = new Maze(ch);
+            }
+        } else {
+            maze = new Maze(args[a]);
+        }
+
+        int io = maze.originSerial();
+        int id = maze.destinationSerial();
+        Paths tree = null;
+        if (mode.isEmpty())
+            tree = new Paths(maze, io);
+        if (saveTo != null) {
+            try (FileChannel ch = FileChannel.open(saveTo, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MazeSnapshot.write(maze, tree, ch);
+            }
+        }
+
+        if (mode.equals("-q")) {
+            ExecutorService pool =
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+                long fit = (long) (QUERY_HEAP * Runtime.getRuntime().maxMemory())
+                    / (8L * Math.max(maze.n(), 1));
+                int capacity = (int) Math.max(1, Math.min(QUERY_CACHE, fit));
+                new QueryService(maze, capacity).batch(
+                        new BufferedReader(new InputStreamReader(in)),
+                        new PrintWriter(out), pool);
+            } finally {
+                pool.shutdown();
+            }
+            return;
+        }
+        if (mode.equals("--bench")) {
+            compareBfs(maze, 10, out);
+            return;
+        }
+
+        int[] route;
+        if (mode.equals("-p")) {
+            route = new ParallelPaths(maze, io).pathTo(id);
+        } else if (mode.equals("-a")) {
+            route = new AStarPath(maze, io, id).route();
+        } else if (mode.equals("-b")) {
+            route = new BidirectionalPath(maze, io, id).route();
+        } else if (mode.equals("-c")) {
+            route = new ContractedPath(new ContractedMaze(maze, io, id)).route();
+        } else {
+            route = tree.pathTo(id);
+        }
+        out.println(moves(maze, route));
     }
 }
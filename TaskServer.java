@@ -0,0 +1,375 @@
+/* Copyright 2016, Sergey Kozlukov <rerumnovarum@openmailbox.org>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/* A resident process serving MazeWalker, KnightsTour and Combinations,
+ * so that a request doesn't pay for JVM startup, class loading and a cold JIT.
+ *
+ * The protocol, over a Unix domain socket or a loopback TCP port (ints are
+ * big-endian, strings UTF-8):
+ *  request:  int count, then count times (int length, length bytes):
+ *            DIR TASK ARG ..., then what the task should read as its stdin (if any)
+ *            (DIR is the client's working directory)
+ *  response: frames (byte OUT or ERR, int length, length bytes) of what the task
+ *            prints to stdout and stderr, then (byte EXIT, byte status)
+ * so that the client prints and exits with exactly what `java TASK ARG ...` would:
+ * status 0, or 1 if the task throws (the stack trace going to stderr) or there's
+ * no such task. File names given to the tasks (MazeWalker -f, --load and --save,
+ * Combinations -o) are taken relative to DIR, as they would be by the task run
+ * there. As the server reads and writes them with its own rights, only its own
+ * user may use it: the Unix domain socket is made owner-only, and connections
+ * from other users are refused. A TCP port can't tell who's connecting, so over
+ * TCP file names are refused altogether.
+ * Each connection is served on its own thread of a cached pool;
+ * the engines are warmed up on startup, and their flight recorder events are on
+ * (unless -Dvsu.jfr=false)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import jdk.net.ExtendedSocketOptions;
+
+public class TaskServer {
+    public static final String DEFAULT_SOCKET =
+        Path.of(System.getProperty("java.io.tmpdir"), "vsu-tasks.sock").toString();
+    /* the most words and bytes accepted in a request */
+    private static final int MAX_WORDS = 1 << 12;
+    private static final int MAX_REQUEST = 1 << 16;
+    /* response frame types */
+    private static final int OUT = 1, ERR = 2, EXIT = 0;
+    private static final int WARMUP_ROUNDS = 200;
+
+    /* a task's main, with its standard streams given and file names taken
+     * relative to dir (refused if dir == null)
+     */
+    public interface Task {
+        void run(String[] args, Path dir, InputStream in, OutputStream out, PrintStream err)
+            throws Exception;
+    }
+
+    public static Task task(String name) {
+        switch (name) {
+            case "MazeWalker":
+                return MazeWalker::run;
+            case "KnightsTour":
+                /* takes no file names */
+                return (args, dir, in, out, err) -> KnightsTour.run(args, in, out, err);
+            case "Combinations":
+                return Combinations::run;
+            default:
+                return null;
+        }
+    }
+
+    private ServerSocketChannel server;
+    private ExecutorService pool = Executors.newCachedThreadPool();
+    /* the user the Unix domain socket belongs to, null over TCP */
+    private UserPrincipal owner;
+
+    public TaskServer(SocketAddress address) throws IOException {
+        if (address instanceof UnixDomainSocketAddress) {
+            Path socket = ((UnixDomainSocketAddress) address).getPath();
+            Files.deleteIfExists(socket);
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(address);
+            Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+            owner = Files.getOwner(socket);
+        } else {
+            server = ServerSocketChannel.open();
+            server.bind(address);
+        }
+    }
+
+    /* runs every task a few times on small inputs, throwing the output away */
+    public static void warmUp() throws Exception {
+        String[][] requests = {
+            { "MazeWalker", "RRLUUULLLDDRRDDLLURRRRUUUULLDD" },
+            { "MazeWalker", "-a", "RRLUUULLLDDRRDDLLURRRRUUUULLDD" },
+            { "KnightsTour", "8", "8", "a1" },
+            { "KnightsTour", "-d", "12", "12", "a1" },
+            { "Combinations", "abcdefghijkl", "6" },
+        };
+        for (int r = 0; r < WARMUP_ROUNDS; ++r)
+            for (String[] req: requests)
+                task(req[0]).run(Arrays.copyOfRange(req, 1, req.length), null,
+                        InputStream.nullInputStream(), OutputStream.nullOutputStream(),
+                        new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    public void serve() throws IOException {
+        while (true) {
+            SocketChannel ch = server.accept();
+            pool.submit(() -> handle(ch));
+        }
+    }
+
+    private void handle(SocketChannel ch) {
+        try (ch) {
+            if (owner != null) {
+                String user = ch.getOption(ExtendedSocketOptions.SO_PEERCRED).user().getName();
+                if (!user.equals(owner.getName()))
+                    throw new IOException("refused a connection from " + user);
+            }
+            InputStream in = new ChannelInput(ch);
+            String[] words = readRequest(in);
+            DataOutputStream frames = new DataOutputStream(new ChannelOutput(ch));
+            OutputStream out = new BufferedOutputStream(new FrameOutput(frames, OUT), 1 << 16);
+            PrintStream err = new PrintStream(new FrameOutput(frames, ERR), true,
+                    StandardCharsets.UTF_8);
+            int status = 0;
+            Task task = words.length < 2 ? null : task(words[1]);
+            if (task == null) {
+                err.println("no such task: " + (words.length < 2 ? "(none)" : words[1]));
+                status = 1;
+            } else {
+                /* over TCP, the client may be anyone: no files */
+                Path dir = owner == null ? null : Path.of(words[0]);
+                try {
+                    task.run(Arrays.copyOfRange(words, 2, words.length), dir,
+                            new BufferedInputStream(in), out, err);
+                } catch (Exception e) {
+                    out.flush();
+                    err.print("Exception in thread \"main\" ");
+                    e.printStackTrace(err);
+                    status = 1;
+                }
+            }
+            out.flush();
+            err.flush();
+            synchronized (frames) {
+                frames.writeByte(EXIT);
+                frames.writeByte(status);
+                frames.flush();
+            }
+        } catch (Exception e) {
+            /* a malformed request, or the client has gone */
+            e.printStackTrace();
+        }
+    }
+
+    /* reads the words of the request unbuffered, leaving the rest to the task */
+    private static String[] readRequest(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int count = data.readInt();
+        if (count < 0 || count > MAX_WORDS)
+            throw new IOException("bad request: " + count + " words");
+        String[] words = new String[count];
+        int total = 0;
+        for (int i = 0; i < count; ++i) {
+            int len = data.readInt();
+            total += len;
+            if (len < 0 || total > MAX_REQUEST)
+                throw new IOException("request too long");
+            byte[] b = new byte[len];
+            data.readFully(b);
+            words[i] = new String(b, StandardCharsets.UTF_8);
+        }
+        return words;
+    }
+
+    /* writes what it's given as frames of one type; the frames of a task's
+     * stdout and stderr go over the same connection, hence the lock
+     */
+    private static class FrameOutput extends OutputStream {
+        private DataOutputStream frames;
+        private int type;
+
+        FrameOutput(DataOutputStream frames, int type) {
+            this.frames = frames;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+            synchronized (frames) {
+                frames.writeByte(type);
+                frames.writeInt(len);
+                frames.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            frames.flush();
+        }
+    }
+
+    /* The thin client: sends the request and its stdin, copies the task's output
+     * to stdout and stderr, and returns its exit status.
+     * (Channels.newInputStream/newOutputStream share one lock on a socket,
+     * so a blocked read would hold up writing stdin: hence these two)
+     */
+    public static int call(SocketAddress address, String[] request) throws IOException {
+        SocketChannel ch = address instanceof UnixDomainSocketAddress
+            ? SocketChannel.open(StandardProtocolFamily.UNIX)
+            : SocketChannel.open();
+        ch.connect(address);
+        OutputStream out = new ChannelOutput(ch);
+        DataOutputStream req = new DataOutputStream(new BufferedOutputStream(out));
+        String[] words = new String[request.length + 1];
+        words[0] = Path.of("").toAbsolutePath().toString();
+        System.arraycopy(request, 0, words, 1, request.length);
+        req.writeInt(words.length);
+        for (String word: words) {
+            byte[] b = word.getBytes(StandardCharsets.UTF_8);
+            req.writeInt(b.length);
+            req.write(b);
+        }
+        req.flush();
+        Thread stdin = new Thread(() -> {
+            try {
+                System.in.transferTo(out);
+                ch.shutdownOutput();
+            } catch (IOException e) {
+                /* the server has already answered */
+            }
+        });
+        stdin.setDaemon(true);
+        stdin.start();
+        DataInputStream frames = new DataInputStream(
+                new BufferedInputStream(new ChannelInput(ch), 1 << 16));
+        byte[] buf = new byte[1 << 16];
+        try (ch) {
+            while (true) {
+                int type = frames.readByte();
+                if (type == EXIT) {
+                    System.out.flush();
+                    System.err.flush();
+                    return frames.readByte();
+                }
+                PrintStream to = type == ERR ? System.err : System.out;
+                int len = frames.readInt();
+                while (len > 0) {
+                    int r = frames.read(buf, 0, Math.min(len, buf.length));
+                    if (r < 0)
+                        throw new EOFException();
+                    to.write(buf, 0, r);
+                    len -= r;
+                }
+            }
+        } catch (EOFException e) {
+            System.out.flush();
+            System.err.println("the server closed the connection");
+            return 1;
+        }
+    }
+
+    private static class ChannelInput extends InputStream {
+        private SocketChannel ch;
+        private byte[] one = new byte[1];
+
+        ChannelInput(SocketChannel ch) {
+            this.ch = ch;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            return ch.read(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    private static class ChannelOutput extends OutputStream {
+        private SocketChannel ch;
+
+        ChannelOutput(SocketChannel ch) {
+            this.ch = ch;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+            while (bb.hasRemaining())
+                ch.write(bb);
+        }
+    }
+
+    private static SocketAddress address(String kind, String where) {
+        if (kind.equals("--port"))
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    Integer.parseInt(where));
+        return UnixDomainSocketAddress.of(where);
+    }
+
+    /* usage:
+     *  TaskServer [--unix SOCKET | --port PORT]
+     *      serves requests (on the Unix domain socket DEFAULT_SOCKET by default;
+     *      over TCP, tasks aren't given file names)
+     *  TaskServer --call [--unix SOCKET | --port PORT] TASK ARG ...
+     *      prints what `java TASK ARG ...` would, forwarding stdin to it,
+     *      and exits with its status
+     */
+    public static void main(String[] args) throws Exception {
+        int a = 0;
+        boolean call = args.length > 0 && args[0].equals("--call");
+        if (call)
+            a += 1;
+        SocketAddress address = UnixDomainSocketAddress.of(DEFAULT_SOCKET);
+        if (args.length > a + 1 && (args[a].equals("--unix") || args[a].equals("--port"))) {
+            address = address(args[a], args[a+1]);
+            a += 2;
+        }
+        if (call) {
+            System.exit(call(address, Arrays.copyOfRange(args, a, args.length)));
+        }
+        /* the tasks' flight recorder events are cheap once the server is up */
+        if (System.getProperty("vsu.jfr") == null)
+            System.setProperty("vsu.jfr", "true");
+        TaskServer server = new TaskServer(address);
+        warmUp();
+        System.err.println("serving on " + address);
+        server.serve();
+    }
+}
@@ -0,0 +1,95 @@
+/* Copyright 2016, Sergey Kozlukov <rerumnovarum@openmailbox.org>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* A full enumeration of the combinations per operation,
+ * by each of the ways Combinations offers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CombinationsBench {
+    /* n/k */
+    @Param({"20/10", "30/6", "64/3"})
+    public String nk;
+
+    private String chars;
+    private int k;
+    private long[] masks = new long[4096];
+
+    @Setup
+    public void setUp() {
+        int slash = nk.indexOf('/');
+        int n = Integer.parseInt(nk.substring(0, slash));
+        k = Integer.parseInt(nk.substring(slash + 1));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; ++i)
+            sb.append((char) ('!' + i));
+        chars = sb.toString();
+    }
+
+    @Benchmark
+    public void iterator(Blackhole bh) {
+        Iterator<String> it = new Combinations(chars, k);
+        while (it.hasNext())
+            bh.consume(it.next());
+    }
+
+    @Benchmark
+    public void indices(Blackhole bh) {
+        new Combinations(chars, k).forEachIndices(idx -> bh.consume(idx[0]));
+    }
+
+    @Benchmark
+    public void view(Blackhole bh) {
+        new Combinations(chars, k).forEachView(comb -> bh.consume(comb.charAt(0)));
+    }
+
+    @Benchmark
+    public void masks(Blackhole bh) {
+        Combinations.Masks it = new Combinations(chars, k).masks();
+        int got;
+        while ((got = it.fill(masks)) > 0)
+            for (int i = 0; i < got; ++i)
+                bh.consume(masks[i]);
+    }
+
+    @Benchmark
+    public void revolvingDoor(Blackhole bh) {
+        Combinations.RevolvingDoor door = new Combinations(chars, k).revolvingDoor();
+        while (door.advance())
+            bh.consume(door.in());
+    }
+}
@@ -0,0 +1,74 @@
+/* Copyright 2016, Sergey Kozlukov <rerumnovarum@openmailbox.org>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Maze construction and BFS on random walks of 10^3 to 10^7 moves;
+ * the walks are the same on every run (fixed seed)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MazeBench {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int moves;
+
+    private String walk;
+    private MazeWalker.Maze maze;
+
+    @Setup
+    public void setUp() {
+        walk = randomWalk(moves, 42);
+        maze = new MazeWalker.Maze(walk);
+    }
+
+    static String randomWalk(int moves, long seed) {
+        final String dirs = "LRUD";
+        Random rnd = new Random(seed);
+        char[] path = new char[moves];
+        for (int i = 0; i < moves; ++i)
+            path[i] = dirs.charAt(rnd.nextInt(4));
+        return new String(path);
+    }
+
+    @Benchmark
+    public MazeWalker.Maze build() {
+        return new MazeWalker.Maze(walk);
+    }
+
+    @Benchmark
+    public int bfs() {
+        MazeWalker.Paths paths = new MazeWalker.Paths(maze, maze.originSerial());
+        return paths.distTo(maze.destinationSerial());
+    }
+}
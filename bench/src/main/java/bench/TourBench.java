@@ -0,0 +1,61 @@
+/* Copyright 2016, Sergey Kozlukov <rerumnovarum@openmailbox.org>
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* BoardTraversal on square boards from a corner, the middle of an edge
+ * and the centre
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TourBench {
+    @Param({"8", "20", "50", "200"})
+    public int size;
+
+    @Param({"corner", "edge", "centre"})
+    public String start;
+
+    private int x0, y0;
+
+    @Setup
+    public void setUp() {
+        int mid = size / 2;
+        x0 = start.equals("corner") ? 0 : mid;
+        y0 = start.equals("centre") ? mid : 0;
+    }
+
+    @Benchmark
+    public KnightsTour.BoardTraversal traverse() {
+        return new KnightsTour.BoardTraversal(size, size, x0, y0);
+    }
+}